@@ -0,0 +1,128 @@
+package scaveleous.mcregion;
+
+// Keeps recently read chunks in memory, already decompressed
+import java.io.File;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/* an LRU cache of decompressed chunk data, bounded by a byte budget
+
+   entries are keyed by world directory and chunk coordinates. A write to a
+   chunk must invalidate it; to keep a read that raced with a write from
+   putting stale data back, put() only stores data if nothing was
+   invalidated since the caller took its stamp(). */
+class ChunkCache
+{
+	private static final class Key
+	{
+		final File world;
+		final long chunk;
+
+		Key(File world, int x, int z)
+		{
+			this.world = world;
+			this.chunk = (long) x << 32 | (z & 0xFFFFFFFFL);
+		}
+
+		@Override
+		public boolean equals(Object o)
+		{
+			if (!(o instanceof Key))
+				return false;
+			Key k = (Key) o;
+			return chunk == k.chunk && world.equals(k.world);
+		}
+
+		@Override
+		public int hashCode()
+		{ return world.hashCode() * 31 + Long.hashCode(chunk * 0x9E3779B97F4A7C15L); }
+	}
+
+	private final LinkedHashMap<Key, byte[]> entries = new LinkedHashMap<Key, byte[]>(256, 0.75f, true);
+	private long budget;
+	private long size = 0;
+	private final AtomicLong invalidations = new AtomicLong();
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+
+	ChunkCache(long budget)
+	{ this.budget = budget; }
+
+	boolean isEnabled()
+	{ return budget > 0; }
+
+	/* changes the budget, evicting as needed; 0 disables the cache */
+	synchronized void setBudget(long bytes)
+	{
+		budget = Math.max(0, bytes);
+		evict();
+	}
+
+	/* the cached data of a chunk, or null (counted as a miss) */
+	byte[] get(File world, int x, int z)
+	{
+		byte data[];
+		synchronized (this)
+		{
+			data = entries.get(new Key(world, x, z));
+		}
+		(data != null ? hits : misses).incrementAndGet();
+		return data;
+	}
+
+	/* is the chunk cached? unlike get(), not counted as a hit or miss */
+	synchronized boolean contains(File world, int x, int z)
+	{ return entries.containsKey(new Key(world, x, z)); }
+
+	/* to be taken before reading a chunk from disk and passed to put() */
+	long stamp()
+	{ return invalidations.get(); }
+
+	/* caches the data of a chunk read from disk, unless an invalidation
+	   happened after stamp was taken */
+	synchronized void put(File world, int x, int z, byte[] data, long stamp)
+	{
+		if (budget <= 0 || data.length > budget || invalidations.get() != stamp)
+			return;
+		byte old[] = entries.put(new Key(world, x, z), data);
+		size += data.length - (old != null ? old.length : 0);
+		evict();
+	}
+
+	synchronized void invalidate(File world, int x, int z)
+	{
+		invalidations.incrementAndGet();
+		byte old[] = entries.remove(new Key(world, x, z));
+		if (old != null)
+			size -= old.length;
+	}
+
+	synchronized void clear()
+	{
+		invalidations.incrementAndGet();
+		entries.clear();
+		size = 0;
+	}
+
+	long getHits()
+	{ return hits.get(); }
+
+	long getMisses()
+	{ return misses.get(); }
+
+	synchronized long getSize()
+	{ return size; }
+
+	/* drops least recently used entries until the cache fits its budget */
+	private void evict()
+	{
+		Iterator<Map.Entry<Key, byte[]>> it = entries.entrySet().iterator();
+		while (size > budget && it.hasNext())
+		{
+			size -= it.next().getValue().length;
+			it.remove();
+		}
+	}
+}
@@ -0,0 +1,266 @@
+package scaveleous.mcregion;
+
+// Compression formats for chunk data, identified by the chunk version byte
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/* a way of encoding chunk data, stored as the version byte of each chunk
+
+   reads look the codec up by the version byte they find, so every version
+   a region may contain has to be registered. Several codecs can share a
+   version when they only differ in how they write, like deflate levels. */
+public abstract class ChunkCodec
+{
+	private static final ChunkCodec registry[] = new ChunkCodec[RegionFile.VERSION_MASK + 1];
+
+	/* version 1: gzipped data, as written by old chunk files */
+	public static final ChunkCodec GZIP = register(new ChunkCodec(1, "gzip")
+	{
+		@Override
+		public InputStream decode(InputStream in) throws IOException
+		{ return new GZIPInputStream(in); }
+
+		@Override
+		public OutputStream encode(OutputStream out) throws IOException
+		{ return new GZIPOutputStream(out); }
+	});
+
+	/* version 2: zlib data at the default compression level */
+	public static final ChunkCodec DEFLATE = register(deflate(Deflater.DEFAULT_COMPRESSION));
+
+	/* version 3: stored as is */
+	public static final ChunkCodec NONE = register(new ChunkCodec(3, "none")
+	{
+		@Override
+		public InputStream decode(InputStream in)
+		{ return in; }
+
+		@Override
+		public OutputStream encode(OutputStream out)
+		{ return out; }
+
+		@Override
+		public int decode(ByteBuffer src, ByteBuffer dst)
+		{
+			int n = src.remaining();
+			if (n > dst.remaining())
+				throw new BufferOverflowException();
+			dst.put(src);
+			return n;
+		}
+
+		@Override
+		void encode(ByteBuffer src, ReusableBuffer out)
+		{ out.write(src); }
+	});
+
+	/* version 4: LZ4 block compression, much faster than deflate but larger */
+	public static final ChunkCodec LZ4 = register(new Lz4Codec(4));
+
+	private final int version;
+	private final String name;
+
+	protected ChunkCodec(int version, String name)
+	{
+		if (version < 1 || version > RegionFile.VERSION_MASK)
+			throw new IllegalArgumentException("chunk version out of range: " + version);
+		this.version = version;
+		this.name = name;
+	}
+
+	/* a zlib (version 2) codec that compresses at the given level, from
+	   Deflater.BEST_SPEED to Deflater.BEST_COMPRESSION */
+	public static ChunkCodec deflate(final int level)
+	{
+		if (level != Deflater.DEFAULT_COMPRESSION && (level < Deflater.NO_COMPRESSION || level > Deflater.BEST_COMPRESSION))
+			throw new IllegalArgumentException("invalid deflate level: " + level);
+		return new ChunkCodec(2, level == Deflater.DEFAULT_COMPRESSION ? "deflate" : "deflate:" + level)
+		{
+			@Override
+			public InputStream decode(InputStream in)
+			{
+				final Inflater inflater = ZlibPool.acquireInflater();
+				return new InflaterInputStream(in, inflater)
+				{
+					private boolean released = false;
+
+					@Override
+					public void close() throws IOException
+					{
+						super.close();
+						if (!released)
+						{
+							released = true;
+							ZlibPool.release(inflater);
+						}
+					}
+				};
+			}
+
+			@Override
+			public OutputStream encode(OutputStream out)
+			{
+				final Deflater deflater = ZlibPool.acquireDeflater(level);
+				return new DeflaterOutputStream(out, deflater)
+				{
+					private boolean released = false;
+
+					@Override
+					public void close() throws IOException
+					{
+						try
+						{ super.close(); }
+						finally
+						{
+							if (!released)
+							{
+								released = true;
+								ZlibPool.release(deflater);
+							}
+						}
+					}
+				};
+			}
+
+			@Override
+			public int decode(ByteBuffer src, ByteBuffer dst) throws IOException
+			{
+				Inflater inflater = ZlibPool.acquireInflater();
+				try
+				{
+					int start = dst.position();
+					inflater.setInput(src);
+					while (!inflater.finished())
+					{
+						if (!dst.hasRemaining())
+							throw new BufferOverflowException();
+						if (inflater.inflate(dst) == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+							throw new IOException("truncated zlib data");
+					}
+					return dst.position() - start;
+				}
+				catch (DataFormatException e)
+				{
+					throw new IOException("corrupt zlib data", e);
+				}
+				finally
+				{
+					ZlibPool.release(inflater);
+				}
+			}
+
+			@Override
+			void encode(ByteBuffer src, ReusableBuffer out)
+			{
+				Deflater deflater = ZlibPool.acquireDeflater(level);
+				try
+				{
+					deflater.setInput(src);
+					deflater.finish();
+					while (!deflater.finished())
+					{
+						out.ensureFree(4096);
+						byte buf[] = out.array();
+						out.advance(deflater.deflate(buf, out.size(), buf.length - out.size()));
+					}
+				}
+				finally
+				{
+					ZlibPool.release(deflater);
+				}
+			}
+		};
+	}
+
+	/* the codec used to read chunks stored with the given version,
+	   or null if the version is unknown */
+	public static ChunkCodec forVersion(int version)
+	{ return version >= 0 && version < registry.length ? registry[version] : null; }
+
+	/* makes chunks with this codec's version readable, replacing whatever
+	   codec was registered for that version before */
+	public static synchronized ChunkCodec register(ChunkCodec codec)
+	{
+		registry[codec.version] = codec;
+		return codec;
+	}
+
+	public int getVersion()
+	{ return version; }
+
+	/* wraps a stream of encoded chunk data in one that decodes it */
+	public abstract InputStream decode(InputStream in) throws IOException;
+
+	/* wraps a stream in one that encodes everything written to it; closing
+	   the returned stream finishes the encoding and closes out */
+	public abstract OutputStream encode(OutputStream out) throws IOException;
+
+	/* decodes the remaining bytes of src straight into dst, advancing both
+	   returns the number of bytes written to dst, or throws
+	   BufferOverflowException if the decoded chunk does not fit
+	   codecs override this to avoid going through streams */
+	public int decode(ByteBuffer src, ByteBuffer dst) throws IOException
+	{
+		int start = dst.position();
+		try (InputStream in = decode(new ByteBufferInputStream(src)))
+		{
+			byte tmp[] = dst.hasArray() ? dst.array() : new byte[4096];
+			while (true)
+			{
+				int off = dst.hasArray() ? dst.arrayOffset() + dst.position() : 0;
+				int len = dst.hasArray() ? dst.remaining() : Math.min(tmp.length, dst.remaining());
+				if (len == 0)
+				{
+					if (in.read() != -1)
+						throw new BufferOverflowException();
+					break;
+				}
+				int n = in.read(tmp, off, len);
+				if (n < 0)
+					break;
+				if (dst.hasArray())
+					dst.position(dst.position() + n);
+				else
+					dst.put(tmp, 0, n);
+			}
+		}
+		return dst.position() - start;
+	}
+
+	/* encodes the remaining bytes of src, appending the result to out */
+	void encode(ByteBuffer src, ReusableBuffer out) throws IOException
+	{
+		try (OutputStream os = encode(out))
+		{
+			if (src.hasArray())
+			{
+				os.write(src.array(), src.arrayOffset() + src.position(), src.remaining());
+				src.position(src.limit());
+			}
+			else
+			{
+				byte tmp[] = new byte[4096];
+				while (src.hasRemaining())
+				{
+					int n = Math.min(tmp.length, src.remaining());
+					src.get(tmp, 0, n);
+					os.write(tmp, 0, n);
+				}
+			}
+		}
+	}
+
+	@Override
+	public String toString()
+	{ return name; }
+}
@@ -0,0 +1,119 @@
+package scaveleous.mcregion;
+
+// Hands the chunks of a region scan to a visitor, possibly on worker threads
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicReference;
+
+/* without workers, each chunk is decoded and visited right away on the
+   scanning thread; with workers, up to MAX_QUEUED chunks at a time are
+   decoded and visited on them while the scan goes on reading */
+class ChunkVisitDispatcher
+{
+	private static final int MAX_QUEUED = 64;
+	private final ChunkVisitor visitor;
+	private final Executor workers;
+	/* must chunk data be copied before it is handed to a worker? */
+	private final boolean copy;
+	private final Semaphore queued = new Semaphore(MAX_QUEUED);
+	private final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+
+	ChunkVisitDispatcher(ChunkVisitor visitor, Executor workers, boolean copy)
+	{
+		this.visitor = visitor;
+		this.workers = workers;
+		this.copy = copy;
+	}
+
+	/* visits the chunk at (x,z) whose encoded data are the remaining bytes of data */
+	void dispatch(int x, int z, int version, ByteBuffer data) throws IOException
+	{
+		rethrow();
+		if (workers == null)
+		{
+			visit(x, z, version, data);
+			return;
+		}
+		ByteBuffer chunk = data;
+		if (copy)
+		{
+			chunk = ByteBuffer.allocate(data.remaining());
+			chunk.put(data).flip();
+		}
+		try
+		{
+			queued.acquire();
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("interrupted while scanning a region");
+		}
+		final ByteBuffer task = chunk;
+		try
+		{
+			workers.execute(() ->
+			{
+				try
+				{
+					if (error.get() == null)
+						visit(x, z, version, task);
+				}
+				catch (Throwable e)
+				{
+					error.compareAndSet(null, e);
+				}
+				finally
+				{
+					queued.release();
+				}
+			});
+		}
+		catch (RejectedExecutionException e)
+		{
+			/* the task will never run to give its permit back, and finish()
+			   waits for all of them */
+			queued.release();
+			throw e;
+		}
+	}
+
+	/* waits for the workers to finish, then passes on the first exception
+	   any visit threw */
+	void finish() throws IOException
+	{
+		if (workers != null)
+		{
+			queued.acquireUninterruptibly(MAX_QUEUED);
+			queued.release(MAX_QUEUED);
+		}
+		rethrow();
+	}
+
+	private void visit(int x, int z, int version, ByteBuffer data) throws IOException
+	{
+		ChunkCodec codec = ChunkCodec.forVersion(version);
+		if (codec == null)
+			return;
+		try (DataInputStream in = new DataInputStream(codec.decode(new ByteBufferInputStream(data))))
+		{
+			visitor.visit(x, z, in);
+		}
+	}
+
+	private void rethrow() throws IOException
+	{
+		Throwable e = error.get();
+		if (e instanceof IOException)
+			throw (IOException) e;
+		if (e instanceof RuntimeException)
+			throw (RuntimeException) e;
+		if (e instanceof Error)
+			throw (Error) e;
+	}
+}
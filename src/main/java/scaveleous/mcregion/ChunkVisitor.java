@@ -0,0 +1,14 @@
+package scaveleous.mcregion;
+
+// Receives the chunks of a whole-region scan
+import java.io.DataInputStream;
+import java.io.IOException;
+
+/* called by RegionFile.forEachChunk and MappedRegionFile.forEachChunk once
+   for each stored chunk, with its coordinates within the region (0-31) and
+   a stream of its uncompressed data, which is only valid during the call
+   an exception thrown here ends the scan and is passed on to its caller */
+public interface ChunkVisitor
+{
+	void visit(int x, int z, DataInputStream data) throws IOException;
+}
@@ -0,0 +1,17 @@
+package scaveleous.mcregion;
+
+// Signals a chunk that is stored but cannot be read back intact
+import java.io.IOException;
+
+/* thrown when a chunk's offset, length, version or checksum is invalid, so
+   callers can tell a damaged chunk apart from one that is simply missing */
+public class CorruptChunkException extends IOException
+{
+	private static final long serialVersionUID = 1L;
+
+	public CorruptChunkException(String message)
+	{ super(message); }
+
+	public CorruptChunkException(String message, Throwable cause)
+	{ super(message, cause); }
+}
@@ -0,0 +1,302 @@
+package scaveleous.mcregion;
+
+// A dependency-free LZ4 block codec for chunk data
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/* chunk data is stored as a 4-byte big-endian uncompressed length followed
+   by a single LZ4 block (the raw block format, without LZ4 frame headers)
+
+   the compressor is the simple greedy one: a 4K-entry hash table of recent
+   4-byte sequences, no lazy matching. It trades ratio for speed, which is
+   the point of choosing this codec over deflate. */
+class Lz4Codec extends ChunkCodec
+{
+	private static final int MIN_MATCH = 4;
+	/* the last 5 bytes of a block are always literals */
+	private static final int LAST_LITERALS = 5;
+	/* the last match has to start at least 12 bytes before the end */
+	private static final int MF_LIMIT = 12;
+	private static final int MAX_OFFSET = 65535;
+	private static final int HASH_BITS = 12;
+	/* per-thread hash table and staging for buffers that are not array-backed */
+	private static final ThreadLocal<int[]> hashTable = ThreadLocal.withInitial(() -> new int[1 << HASH_BITS]);
+	private static final ThreadLocal<ReusableBuffer> srcScratch = ThreadLocal.withInitial(() -> new ReusableBuffer(8192));
+	private static final ThreadLocal<ReusableBuffer> dstScratch = ThreadLocal.withInitial(() -> new ReusableBuffer(8192));
+
+	Lz4Codec(int version)
+	{ super(version, "lz4"); }
+
+	@Override
+	public InputStream decode(InputStream in) throws IOException
+	{
+		DataInputStream data = new DataInputStream(in);
+		int length = data.readInt();
+		byte src[] = data.readAllBytes();
+		checkLength(length, src.length);
+		byte dst[] = new byte[length];
+		decompress(src, 0, src.length, dst, 0, length);
+		return new ByteArrayInputStream(dst);
+	}
+
+	@Override
+	public OutputStream encode(final OutputStream out)
+	{
+		/* LZ4 works on whole blocks, so collect the chunk and compress it on close */
+		return new ByteArrayOutputStream(8192)
+		{
+			private boolean closed = false;
+
+			@Override
+			public void close() throws IOException
+			{
+				if (closed)
+					return;
+				closed = true;
+				byte dst[] = new byte[4 + maxCompressedLength(count)];
+				dst[0] = (byte) (count >>> 24);
+				dst[1] = (byte) (count >>> 16);
+				dst[2] = (byte) (count >>> 8);
+				dst[3] = (byte) count;
+				int n = compress(buf, 0, count, dst, 4);
+				out.write(dst, 0, 4 + n);
+				out.close();
+			}
+		};
+	}
+
+	@Override
+	public int decode(ByteBuffer src, ByteBuffer dst) throws IOException
+	{
+		if (src.remaining() < 4)
+			throw new IOException("truncated LZ4 data");
+		int length = src.getInt();
+		checkLength(length, src.remaining());
+		if (length > dst.remaining())
+			throw new BufferOverflowException();
+		byte in[];
+		int inOff;
+		int inLength = src.remaining();
+		if (src.hasArray())
+		{
+			in = src.array();
+			inOff = src.arrayOffset() + src.position();
+			src.position(src.limit());
+		}
+		else
+		{
+			ReusableBuffer scratch = srcScratch.get();
+			scratch.reset();
+			scratch.write(src);
+			in = scratch.array();
+			inOff = 0;
+		}
+		if (dst.hasArray())
+		{
+			decompress(in, inOff, inLength, dst.array(), dst.arrayOffset() + dst.position(), length);
+			dst.position(dst.position() + length);
+		}
+		else
+		{
+			ReusableBuffer scratch = dstScratch.get();
+			scratch.reset();
+			scratch.ensureFree(length);
+			decompress(in, inOff, inLength, scratch.array(), 0, length);
+			dst.put(scratch.array(), 0, length);
+		}
+		return length;
+	}
+
+	@Override
+	void encode(ByteBuffer src, ReusableBuffer out)
+	{
+		int length = src.remaining();
+		byte in[];
+		int inOff;
+		if (src.hasArray())
+		{
+			in = src.array();
+			inOff = src.arrayOffset() + src.position();
+		}
+		else
+		{
+			ReusableBuffer scratch = srcScratch.get();
+			scratch.reset();
+			scratch.write(src.duplicate());
+			in = scratch.array();
+			inOff = 0;
+		}
+		out.ensureFree(4 + maxCompressedLength(length));
+		byte dst[] = out.array();
+		int op = out.size();
+		dst[op] = (byte) (length >>> 24);
+		dst[op + 1] = (byte) (length >>> 16);
+		dst[op + 2] = (byte) (length >>> 8);
+		dst[op + 3] = (byte) length;
+		out.advance(4 + compress(in, inOff, length, dst, op + 4));
+		src.position(src.limit());
+	}
+
+	/* rejects an uncompressed length that a block of srcLength bytes cannot
+	   expand to (LZ4 expands 255:1 at most), before anything is allocated
+	   for it */
+	private static void checkLength(int length, int srcLength) throws IOException
+	{
+		if (length < 0 || length > 255L * srcLength + 16)
+			throw new IOException("invalid LZ4 length " + length + " for a block of " + srcLength + " bytes");
+	}
+
+	/* the largest block compress() can produce from length bytes */
+	static int maxCompressedLength(int length)
+	{ return length + length / 255 + 16; }
+
+	/* compresses length bytes of src into dst, which must have room for
+	   maxCompressedLength(length) bytes
+	   returns the number of bytes written */
+	static int compress(byte[] src, int srcOff, int length, byte[] dst, int dstOff)
+	{
+		int end = srcOff + length;
+		int op = dstOff;
+		int anchor = srcOff;
+		if (length > MF_LIMIT)
+		{
+			int table[] = hashTable.get();
+			Arrays.fill(table, 0);
+			int matchLimit = end - MF_LIMIT;
+			int ip = srcOff;
+			while (ip < matchLimit)
+			{
+				int sequence = readInt(src, ip);
+				int h = hash(sequence);
+				int ref = srcOff + table[h] - 1;
+				table[h] = ip - srcOff + 1;
+				if (ref < srcOff || ip - ref > MAX_OFFSET || readInt(src, ref) != sequence)
+				{
+					ip++;
+					continue;
+				}
+				/* extend the match backwards over literals we have not written yet */
+				while (ip > anchor && ref > srcOff && src[ip - 1] == src[ref - 1])
+				{
+					ip--;
+					ref--;
+				}
+				int matchLength = MIN_MATCH;
+				while (ip + matchLength < end - LAST_LITERALS && src[ip + matchLength] == src[ref + matchLength])
+					matchLength++;
+				op = writeSequence(src, anchor, ip - anchor, ip - ref, matchLength, dst, op);
+				ip += matchLength;
+				anchor = ip;
+			}
+		}
+		op = writeSequence(src, anchor, end - anchor, 0, 0, dst, op);
+		return op - dstOff;
+	}
+
+	/* decompresses an LZ4 block of srcLength bytes into exactly dstLength bytes of dst */
+	static void decompress(byte[] src, int srcOff, int srcLength, byte[] dst, int dstOff, int dstLength) throws IOException
+	{
+		int ip = srcOff;
+		int srcEnd = srcOff + srcLength;
+		int op = dstOff;
+		int dstEnd = dstOff + dstLength;
+		try
+		{
+			while (true)
+			{
+				int token = src[ip++] & 0xFF;
+				int literals = token >>> 4;
+				if (literals == 15)
+				{
+					int b;
+					do
+					{
+						b = src[ip++] & 0xFF;
+						literals += b;
+					}
+					while (b == 255);
+				}
+				if (literals > srcEnd - ip || literals > dstEnd - op)
+					throw new IOException("corrupt LZ4 data: literals overrun");
+				System.arraycopy(src, ip, dst, op, literals);
+				ip += literals;
+				op += literals;
+				if (ip == srcEnd)
+					break;
+				int offset = (src[ip] & 0xFF) | (src[ip + 1] & 0xFF) << 8;
+				ip += 2;
+				if (offset == 0 || offset > op - dstOff)
+					throw new IOException("corrupt LZ4 data: bad match offset " + offset);
+				int matchLength = token & 0xF;
+				if (matchLength == 15)
+				{
+					int b;
+					do
+					{
+						b = src[ip++] & 0xFF;
+						matchLength += b;
+					}
+					while (b == 255);
+				}
+				matchLength += MIN_MATCH;
+				if (matchLength > dstEnd - op)
+					throw new IOException("corrupt LZ4 data: match overrun");
+				/* matches may overlap their own output, so copy byte by byte */
+				for (int ref = op - offset, matchEnd = op + matchLength; op < matchEnd; )
+					dst[op++] = dst[ref++];
+			}
+		}
+		catch (ArrayIndexOutOfBoundsException e)
+		{
+			throw new IOException("corrupt LZ4 data: truncated block");
+		}
+		if (op != dstEnd)
+			throw new IOException("corrupt LZ4 data: " + (op - dstOff) + " bytes instead of " + dstLength);
+	}
+
+	/* writes one token: literals, then a match unless matchLength is 0 */
+	private static int writeSequence(byte[] src, int literalStart, int literals, int offset, int matchLength, byte[] dst, int op)
+	{
+		int tokenPos = op++;
+		int token = Math.min(literals, 15) << 4;
+		if (literals >= 15)
+			op = writeLength(literals - 15, dst, op);
+		System.arraycopy(src, literalStart, dst, op, literals);
+		op += literals;
+		if (matchLength > 0)
+		{
+			dst[op++] = (byte) offset;
+			dst[op++] = (byte) (offset >>> 8);
+			int extra = matchLength - MIN_MATCH;
+			token |= Math.min(extra, 15);
+			if (extra >= 15)
+				op = writeLength(extra - 15, dst, op);
+		}
+		dst[tokenPos] = (byte) token;
+		return op;
+	}
+
+	private static int writeLength(int length, byte[] dst, int op)
+	{
+		while (length >= 255)
+		{
+			dst[op++] = (byte) 255;
+			length -= 255;
+		}
+		dst[op++] = (byte) length;
+		return op;
+	}
+
+	private static int readInt(byte[] b, int i)
+	{ return (b[i] & 0xFF) | (b[i + 1] & 0xFF) << 8 | (b[i + 2] & 0xFF) << 16 | (b[i + 3] & 0xFF) << 24; }
+
+	private static int hash(int sequence)
+	{ return (sequence * -1640531535) >>> (32 - HASH_BITS); }
+}
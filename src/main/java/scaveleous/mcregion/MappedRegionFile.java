@@ -0,0 +1,199 @@
+package scaveleous.mcregion;
+
+// Read-only access to a region file through a memory mapping
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.Executor;
+
+/* maps a whole region file and hands out chunks as slices of the mapping
+
+   meant for tools that only read (world viewers, map renderers, unpacking):
+   nothing is copied onto the heap, and since the mapping never changes no
+   locking is needed, so any number of threads can read at once. The file
+   must not be written by a RegionFile while it is mapped. See RegionFile
+   for the file format. */
+public class MappedRegionFile implements Closeable
+{
+	private final File fileName;
+	private final RandomAccessFile file;
+	private final MappedByteBuffer map;
+
+	public MappedRegionFile(File path) throws IOException
+	{
+		fileName = path;
+		file = new RandomAccessFile(path, "r");
+		try
+		{
+			if (file.length() < 4096)
+				throw new IOException(path + " is too short to be a region file");
+			if (file.length() > Integer.MAX_VALUE)
+				throw new IOException(path + " is too large to map");
+			map = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+		}
+		catch (IOException e)
+		{
+			file.close();
+			throw e;
+		}
+	}
+
+	/* the mapping itself stays valid until it is garbage collected, so this
+	   only releases the file handle */
+	@Override
+	public void close() throws IOException
+	{ file.close(); }
+
+	public File getFile()
+	{ return fileName; }
+
+	/* the offset table entry of the chunk at (x,z), read from the mapping */
+	public int getOffset(int x, int z)
+	{
+		if (outOfBounds(x, z))
+			throw new IllegalArgumentException("chunk out of bounds: " + x + "," + z);
+		return map.getInt((x + z * 32) * 4);
+	}
+
+	/* the stored size of the chunk at (x,z) in bytes, headers and trailers
+	   included, or 0 if it is not stored */
+	int getStoredSize(int x, int z) throws IOException
+	{
+		ByteBuffer chunk = chunkAt(x, z, getOffset(x, z));
+		return chunk == null ? 0 : chunk.remaining() + 4;
+	}
+
+	/* the codec version of the chunk at (x,z), or -1 if it is not stored */
+	public int getChunkVersion(int x, int z) throws IOException
+	{
+		ByteBuffer chunk = chunkAt(x, z, getOffset(x, z));
+		return chunk == null ? -1 : RegionFile.unwrapChunk(chunk);
+	}
+
+	/* the encoded data of the chunk at (x,z) as a read-only slice of the
+	   mapping, without its header and trailers
+	   returns null if the chunk is not stored, and throws
+	   CorruptChunkException if it is damaged */
+	public ByteBuffer getChunkData(int x, int z) throws IOException
+	{
+		ByteBuffer chunk = chunkAt(x, z, getOffset(x, z));
+		if (chunk == null)
+			return null;
+		RegionFile.unwrapChunk(chunk);
+		return chunk.slice();
+	}
+
+	/* gets an (uncompressed) stream representing the chunk data
+	   returns null if the chunk is not found or an error occurs */
+	public DataInputStream getChunkDataInputStream(int x, int z)
+	{
+		try
+		{
+			ByteBuffer chunk = chunkAt(x, z, getOffset(x, z));
+			if (chunk == null)
+				return null;
+			ChunkCodec codec = ChunkCodec.forVersion(RegionFile.unwrapChunk(chunk));
+			if (codec == null)
+				return null;
+			return new DataInputStream(codec.decode(new ByteBufferInputStream(chunk)));
+		}
+		catch (IOException e)
+		{
+			return null;
+		}
+	}
+
+	/* decodes the chunk at (x,z) straight from the mapping into dst
+	   returns the number of bytes decoded, or -1 if the chunk is not stored
+	   throws CorruptChunkException if the chunk is damaged, and
+	   BufferOverflowException if it does not fit in dst */
+	public int readChunk(int x, int z, ByteBuffer dst) throws IOException
+	{
+		ByteBuffer chunk = chunkAt(x, z, getOffset(x, z));
+		if (chunk == null)
+			return -1;
+		int version = RegionFile.unwrapChunk(chunk);
+		ChunkCodec codec = ChunkCodec.forVersion(version);
+		if (codec == null)
+			throw new CorruptChunkException("unknown chunk version " + version);
+		try
+		{
+			return codec.decode(chunk, dst);
+		}
+		catch (CorruptChunkException e)
+		{
+			throw e;
+		}
+		catch (IOException e)
+		{
+			throw new CorruptChunkException("chunk " + x + "," + z + " cannot be decoded: " + e.getMessage(), e);
+		}
+	}
+
+	/* visits every stored chunk in the order of their sectors in the file, so
+	   the mapping is paged in sequentially
+	   chunks are decoded and visited on workers if it is not null, several at
+	   a time, otherwise on the calling thread; chunks whose header is damaged
+	   are skipped */
+	public void forEachChunk(ChunkVisitor visitor) throws IOException
+	{ forEachChunk(visitor, null); }
+
+	public void forEachChunk(ChunkVisitor visitor, Executor workers) throws IOException
+	{
+		int offsets[] = new int[1024];
+		map.duplicate().position(0).asIntBuffer().get(offsets);
+		ChunkVisitDispatcher dispatcher = new ChunkVisitDispatcher(visitor, workers, false);
+		try
+		{
+			for (int slot : RegionFile.slotsBySector(offsets))
+			{
+				ByteBuffer chunk;
+				int version;
+				try
+				{
+					chunk = chunkAt(slot & 31, slot >> 5, offsets[slot]);
+					version = RegionFile.unwrapChunk(chunk);
+				}
+				catch (CorruptChunkException e)
+				{
+					continue;
+				}
+				dispatcher.dispatch(slot & 31, slot >> 5, version, chunk);
+			}
+		}
+		finally
+		{
+			dispatcher.finish();
+		}
+	}
+
+	/* a view of the chunk at (x,z) stored at offset, positioned at its version
+	   byte and limited to the end of its data, or null if offset is 0; for a
+	   chunk stored outside the region, its overflow file is mapped */
+	private ByteBuffer chunkAt(int x, int z, int offset) throws IOException
+	{
+		if (offset == 0)
+			return null;
+		long start = (long) (offset >> 8) * 4096;
+		int numSectors = offset & 0xFF;
+		if (start == 0 || start + RegionFile.CHUNK_HEADER_SIZE > map.capacity())
+			throw new CorruptChunkException("invalid sector " + (offset >> 8));
+		int length = map.getInt((int) start);
+		if (length < 1 || length > 4096 * numSectors - 4 || start + 4 + length > map.capacity())
+			throw new CorruptChunkException("invalid length: " + length + " in " + numSectors + " sectors");
+		if ((map.get((int) start + 4) & RegionFile.FLAG_EXTERNAL) != 0)
+			return RegionFile.mapExternal(RegionFile.externalFile(fileName, x, z));
+		ByteBuffer chunk = map.asReadOnlyBuffer();
+		chunk.limit((int) start + 4 + length).position((int) start + 4);
+		return chunk;
+	}
+
+	/* is this an invalid chunk coordinate? */
+	private boolean outOfBounds(int x, int z)
+	{ return x < 0 || x >= 32 || z < 0 || z >= 32; }
+}
@@ -0,0 +1,104 @@
+package scaveleous.mcregion;
+
+// Remembers which chunk files a pack run has already put into the regions
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/* kept in the target world as region/pack.manifest, a text file with one
+   line per packed chunk:
+
+     <x> <z> <file size> <file mtime> <SHA-256 of the file> <region timestamp>
+
+   the region timestamp is the chunk's timestamp in its region right after
+   it was packed (see RegionFile.getChunkTimestamp), so a later run can tell
+   whether the region still holds what it packed. Lines that do not parse
+   are ignored; the manifest is only ever a way to skip work. */
+class PackManifest
+{
+	static final class Entry
+	{
+		final long size;
+		final long modified;
+		final String hash;
+		final long regionTimestamp;
+
+		Entry(long size, long modified, String hash, long regionTimestamp)
+		{
+			this.size = size;
+			this.modified = modified;
+			this.hash = hash;
+			this.regionTimestamp = regionTimestamp;
+		}
+	}
+
+	private final File path;
+	private final ConcurrentHashMap<Long, Entry> entries = new ConcurrentHashMap<Long, Entry>();
+
+	private PackManifest(File path)
+	{ this.path = path; }
+
+	static File manifestFile(File worldDir)
+	{ return new File(new File(worldDir, "region"), "pack.manifest"); }
+
+	/* reads the manifest of a world, or starts an empty one if it has none */
+	static PackManifest load(File worldDir) throws IOException
+	{
+		PackManifest manifest = new PackManifest(manifestFile(worldDir));
+		if (!manifest.path.exists())
+			return manifest;
+		try (BufferedReader in = Files.newBufferedReader(manifest.path.toPath(), StandardCharsets.UTF_8))
+		{
+			String line;
+			while ((line = in.readLine()) != null)
+			{
+				String fields[] = line.split(" ");
+				if (fields.length != 6)
+					continue;
+				try
+				{
+					manifest.put(Integer.parseInt(fields[0]), Integer.parseInt(fields[1]),
+						new Entry(Long.parseLong(fields[2]), Long.parseLong(fields[3]), fields[4], Long.parseLong(fields[5])));
+				}
+				catch (NumberFormatException e)
+				{
+					/* skip the line */
+				}
+			}
+		}
+		return manifest;
+	}
+
+	Entry get(int x, int z)
+	{ return entries.get(RegionTable.key(x, z)); }
+
+	void put(int x, int z, Entry entry)
+	{ entries.put(RegionTable.key(x, z), entry); }
+
+	/* writes the manifest to a temporary file and moves it into place, so an
+	   interrupted save leaves the previous manifest intact */
+	void save() throws IOException
+	{
+		path.getParentFile().mkdirs();
+		File temp = new File(path.getPath() + ".tmp");
+		Map<Long, Entry> sorted = new TreeMap<Long, Entry>(entries);
+		try (BufferedWriter out = Files.newBufferedWriter(temp.toPath(), StandardCharsets.UTF_8))
+		{
+			for (Map.Entry<Long, Entry> e : sorted.entrySet())
+			{
+				Entry entry = e.getValue();
+				out.write((int) (e.getKey() >> 32) + " " + (int) (long) e.getKey() + " " + entry.size + " " +
+					entry.modified + " " + entry.hash + " " + entry.regionTimestamp);
+				out.newLine();
+			}
+		}
+		Files.move(temp.toPath(), path.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+}
@@ -0,0 +1,170 @@
+package scaveleous.mcregion;
+
+// Reports the progress of a long RegionTool run at a fixed rate
+import java.io.PrintStream;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+/* workers only add to counters; a daemon thread turns them into a status
+   line a few times a second on a console (every few seconds otherwise), so
+   reporting costs nothing per chunk. finish() prints a final line and a
+   one-line JSON summary.
+
+   progress towards the total is measured either in chunks or in bytes read,
+   whichever the caller knows up front. The compression ratio compares the
+   uncompressed size of the chunks with their size in the regions. */
+class ProgressReporter
+{
+	private static final long CONSOLE_INTERVAL = 250;
+	private static final long LOG_INTERVAL = 10000;
+	private final String action;
+	private final long total;
+	private final boolean totalIsBytes;
+	private final PrintStream out;
+	private final boolean console;
+	private final long start = System.nanoTime();
+	private final AtomicLong chunks = new AtomicLong();
+	private final AtomicLong skipped = new AtomicLong();
+	private final AtomicLong bytesRead = new AtomicLong();
+	private final AtomicLong bytesWritten = new AtomicLong();
+	private final AtomicLong uncompressed = new AtomicLong();
+	private final AtomicLong compressed = new AtomicLong();
+	private Thread thread;
+	/* the length of the status line on the console, 0 if none is shown */
+	private int statusLength = 0;
+
+	/* total is a chunk count, or a byte count if totalIsBytes */
+	ProgressReporter(String action, long total, boolean totalIsBytes, PrintStream out, boolean console)
+	{
+		this.action = action;
+		this.total = total;
+		this.totalIsBytes = totalIsBytes;
+		this.out = out;
+		this.console = console;
+	}
+
+	void start()
+	{
+		thread = new Thread(() ->
+		{
+			long interval = console ? CONSOLE_INTERVAL : LOG_INTERVAL;
+			try
+			{
+				while (true)
+				{
+					Thread.sleep(interval);
+					showStatus();
+				}
+			}
+			catch (InterruptedException e)
+			{
+				/* finished */
+			}
+		}, "RegionTool progress");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/* counts one converted chunk: the bytes read and written for it, and its
+	   size uncompressed and in the region */
+	void addChunk(long read, long written, long uncompressedSize, long compressedSize)
+	{
+		chunks.incrementAndGet();
+		bytesRead.addAndGet(read);
+		bytesWritten.addAndGet(written);
+		uncompressed.addAndGet(uncompressedSize);
+		compressed.addAndGet(compressedSize);
+	}
+
+	/* counts bytes written for chunks that were counted before the size of
+	   their new version in the region was known */
+	void addWritten(long written, long compressedSize)
+	{
+		bytesWritten.addAndGet(written);
+		compressed.addAndGet(compressedSize);
+	}
+
+	/* counts a chunk left alone, along with the bytes read to decide that */
+	void addSkipped(long read)
+	{
+		skipped.incrementAndGet();
+		bytesRead.addAndGet(read);
+	}
+
+	/* prints a line of its own, keeping the status line below it */
+	synchronized void println(String line)
+	{
+		clearStatus();
+		out.println(line);
+	}
+
+	/* stops the reporter thread and prints the final line and the summary */
+	void finish(String summary)
+	{
+		if (thread != null)
+		{
+			thread.interrupt();
+			try
+			{
+				thread.join();
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+			}
+		}
+		double seconds = Math.max(1e-9, (System.nanoTime() - start) / 1e9);
+		synchronized (this)
+		{
+			clearStatus();
+			out.println(summary);
+			out.println(String.format(Locale.ROOT, "{\"action\":\"%s\",\"chunks\":%d,\"skipped\":%d," +
+				"\"bytesRead\":%d,\"bytesWritten\":%d,\"uncompressedBytes\":%d,\"compressedBytes\":%d," +
+				"\"seconds\":%.3f,\"chunksPerSecond\":%.1f,\"readMBPerSecond\":%.2f,\"writeMBPerSecond\":%.2f," +
+				"\"compressionRatio\":%.3f}",
+				action, chunks.get(), skipped.get(), bytesRead.get(), bytesWritten.get(), uncompressed.get(),
+				compressed.get(), seconds, (chunks.get() + skipped.get()) / seconds, bytesRead.get() / seconds / 1e6,
+				bytesWritten.get() / seconds / 1e6, ratio()));
+		}
+	}
+
+	private synchronized void showStatus()
+	{
+		double seconds = Math.max(1e-9, (System.nanoTime() - start) / 1e9);
+		long done = totalIsBytes ? bytesRead.get() : chunks.get() + skipped.get();
+		String eta = "";
+		if (total > 0 && done > 0)
+		{
+			long remaining = (long) (Math.max(0, total - done) * seconds / done);
+			eta = String.format(Locale.ROOT, ", %d%%, eta %d:%02d", Math.min(100, done * 100 / total),
+				remaining / 60, remaining % 60);
+		}
+		String status = String.format(Locale.ROOT, "%s: %d chunks%s, %.0f chunks/s, read %.1f MB/s, write %.1f MB/s, ratio %.2f%s",
+			action, chunks.get(), skipped.get() > 0 ? " (" + skipped.get() + " skipped)" : "",
+			(chunks.get() + skipped.get()) / seconds, bytesRead.get() / seconds / 1e6,
+			bytesWritten.get() / seconds / 1e6, ratio(), eta);
+		if (console)
+		{
+			/* pad with spaces over whatever is left of a longer line */
+			out.print("\r" + status + " ".repeat(Math.max(0, statusLength - status.length())));
+			statusLength = status.length();
+		}
+		else
+			out.println(status);
+	}
+
+	private void clearStatus()
+	{
+		if (statusLength > 0)
+		{
+			out.print("\r" + " ".repeat(statusLength) + "\r");
+			statusLength = 0;
+		}
+	}
+
+	private double ratio()
+	{
+		long c = compressed.get();
+		return c == 0 ? 0 : (double) uncompressed.get() / c;
+	}
+}
@@ -0,0 +1,415 @@
+package scaveleous.mcregion;
+
+// Reports how a world's region files use their space
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/* reads every region of a world in parallel, one region file per task, and
+   sums up per region and for the whole world:
+
+   - sectors in the file, allocated to chunks, actually needed by their data
+     and free, and what compacting (see RegionFile.compact) would save
+   - a histogram of the free runs between chunks, by length in sectors
+   - per codec version, the chunks' size in the region and decoded
+   - the largest chunks, every chunk close to the 255 sector limit, and how
+     many are past it and stored outside the region (see FLAG_EXTERNAL)
+
+   regions are read through MappedRegionFile, so analyzing changes nothing.
+   Chunks that cannot be decoded are counted as bad; "verify" says why. */
+class RegionAnalyzer
+{
+	/* chunks needing at least this many sectors are reported as near the limit */
+	static final int NEAR_LIMIT_SECTORS = 224;
+	private static final int LARGEST_CHUNKS = 10;
+	/* free runs are counted in buckets of 1, 2-3, 4-7, ... 256+ sectors */
+	private static final int RUN_BUCKETS = 9;
+
+	private static final class Chunk
+	{
+		final String region;
+		final int x, z, sectors, bytes;
+
+		Chunk(String region, int x, int z, int sectors, int bytes)
+		{
+			this.region = region;
+			this.x = x;
+			this.z = z;
+			this.sectors = sectors;
+			this.bytes = bytes;
+		}
+	}
+
+	private static final class Stats
+	{
+		final String name;
+		String error = null;
+		int regions = 0;
+		int chunks = 0;
+		int badChunks = 0;
+		int externalChunks = 0;
+		long fileSectors = 0;
+		long allocatedSectors = 0;
+		long neededSectors = 0;
+		long freeSectors = 0;
+		long storedBytes = 0;
+		final long freeRuns[] = new long[RUN_BUCKETS];
+		final long versionChunks[] = new long[RegionFile.VERSION_MASK + 1];
+		final long versionStored[] = new long[RegionFile.VERSION_MASK + 1];
+		final long versionDecoded[] = new long[RegionFile.VERSION_MASK + 1];
+		final List<Chunk> largest = new ArrayList<Chunk>();
+		final List<Chunk> nearLimit = new ArrayList<Chunk>();
+
+		Stats(String name)
+		{ this.name = name; }
+
+		/* the bytes compacting the region(s) would give back */
+		long compactSavings()
+		{ return Math.max(0, fileSectors - regions - neededSectors) * 4096; }
+
+		void addLargest(Chunk chunk)
+		{
+			largest.add(chunk);
+			largest.sort(Comparator.comparingInt((Chunk c) -> c.bytes).reversed());
+			if (largest.size() > LARGEST_CHUNKS)
+				largest.remove(LARGEST_CHUNKS);
+		}
+
+		void add(Stats other)
+		{
+			regions += other.regions;
+			chunks += other.chunks;
+			badChunks += other.badChunks;
+			externalChunks += other.externalChunks;
+			fileSectors += other.fileSectors;
+			allocatedSectors += other.allocatedSectors;
+			neededSectors += other.neededSectors;
+			freeSectors += other.freeSectors;
+			storedBytes += other.storedBytes;
+			for (int i = 0; i < RUN_BUCKETS; ++i)
+				freeRuns[i] += other.freeRuns[i];
+			for (int v = 0; v <= RegionFile.VERSION_MASK; ++v)
+			{
+				versionChunks[v] += other.versionChunks[v];
+				versionStored[v] += other.versionStored[v];
+				versionDecoded[v] += other.versionDecoded[v];
+			}
+			for (Chunk chunk : other.largest)
+				addLargest(chunk);
+			nearLimit.addAll(other.nearLimit);
+		}
+	}
+
+	/* analyzes every region of a world with the given number of threads and
+	   prints a report to out, as text or as one JSON document
+	   returns false if the world has no region directory */
+	static boolean analyze(File worldDir, int threads, boolean json, PrintStream out)
+	{
+		File regionDir = new File(worldDir, "region");
+		File files[] = regionDir.listFiles((dir, name) -> RegionScanner.regionFilePattern.matcher(name).matches());
+		if (files == null)
+			return false;
+		ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, threads));
+		List<Future<Stats>> results = new ArrayList<Future<Stats>>();
+		for (final File file : files)
+			results.add(pool.submit(() -> analyzeRegion(file)));
+		List<Stats> regions = new ArrayList<Stats>();
+		Stats total = new Stats(worldDir.getName());
+		try
+		{
+			for (Future<Stats> future : results)
+			{
+				Stats stats = future.get();
+				regions.add(stats);
+				total.add(stats);
+			}
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+		catch (ExecutionException e)
+		{
+			e.getCause().printStackTrace();
+		}
+		finally
+		{
+			pool.shutdown();
+		}
+		regions.sort(Comparator.comparing((Stats s) -> s.name));
+		if (json)
+			printJson(regions, total, out);
+		else
+			printText(regions, total, out);
+		return true;
+	}
+
+	private static Stats analyzeRegion(File file)
+	{
+		Stats stats = new Stats(file.getName());
+		stats.regions = 1;
+		try (MappedRegionFile region = new MappedRegionFile(file))
+		{
+			int nSectors = (int) ((file.length() + 4095) / 4096);
+			BitSet used = new BitSet(nSectors);
+			used.set(0);
+			for (int z = 0; z < 32; ++z)
+			{
+				for (int x = 0; x < 32; ++x)
+				{
+					int offset = region.getOffset(x, z);
+					if (offset == 0)
+						continue;
+					stats.chunks++;
+					int sectorNumber = offset >> 8;
+					int numSectors = offset & 0xFF;
+					if (sectorNumber == 0 || sectorNumber + numSectors > nSectors)
+					{
+						/* unreadable, and dropped by compacting */
+						stats.badChunks++;
+						continue;
+					}
+					used.set(sectorNumber, sectorNumber + numSectors);
+					analyzeChunk(region, stats, x, z, numSectors);
+				}
+			}
+			stats.fileSectors = nSectors;
+			stats.allocatedSectors = used.cardinality() - 1;
+			for (int start = used.nextClearBit(1); start < nSectors; )
+			{
+				int end = used.nextSetBit(start) < 0 ? nSectors : used.nextSetBit(start);
+				stats.freeSectors += end - start;
+				stats.freeRuns[Math.min(RUN_BUCKETS - 1, 31 - Integer.numberOfLeadingZeros(end - start))]++;
+				start = used.nextClearBit(end);
+			}
+		}
+		catch (IOException e)
+		{
+			stats.error = e.getMessage();
+		}
+		return stats;
+	}
+
+	private static void analyzeChunk(MappedRegionFile region, Stats stats, int x, int z, int numSectors)
+	{
+		int stored;
+		try
+		{
+			stored = region.getStoredSize(x, z);
+		}
+		catch (IOException e)
+		{
+			/* whatever it holds, compacting keeps all of its sectors */
+			stats.badChunks++;
+			stats.neededSectors += numSectors;
+			return;
+		}
+		int needed = stored / 4096 + 1;
+		if (needed >= 256)
+		{
+			/* only its stub is in the region */
+			stats.externalChunks++;
+			stats.neededSectors += 1;
+		}
+		else
+			stats.neededSectors += needed;
+		stats.storedBytes += stored;
+		Chunk chunk = new Chunk(stats.name, x, z, needed, stored);
+		stats.addLargest(chunk);
+		if (needed >= NEAR_LIMIT_SECTORS)
+			stats.nearLimit.add(chunk);
+		try
+		{
+			int version = region.getChunkVersion(x, z);
+			ChunkCodec codec = ChunkCodec.forVersion(version);
+			if (codec == null)
+				throw new CorruptChunkException("unknown version " + version);
+			long decoded;
+			try (InputStream in = codec.decode(new ByteBufferInputStream(region.getChunkData(x, z))))
+			{
+				decoded = in.transferTo(OutputStream.nullOutputStream());
+			}
+			stats.versionChunks[version]++;
+			stats.versionStored[version] += stored;
+			stats.versionDecoded[version] += decoded;
+		}
+		catch (IOException | RuntimeException e)
+		{
+			stats.badChunks++;
+		}
+	}
+
+	private static void printText(List<Stats> regions, Stats total, PrintStream out)
+	{
+		for (Stats stats : regions)
+		{
+			if (stats.error != null)
+			{
+				out.println(stats.name + ": " + stats.error);
+				continue;
+			}
+			out.println(String.format(Locale.ROOT, "%s: %d chunks, %d of %d sectors allocated, %d needed, " +
+				"%d free in %d runs, compacting saves %dKB%s", stats.name, stats.chunks, stats.allocatedSectors,
+				stats.fileSectors, stats.neededSectors, stats.freeSectors, runs(stats), stats.compactSavings() / 1024,
+				stats.badChunks > 0 ? ", " + stats.badChunks + " bad chunks" : ""));
+		}
+		out.println();
+		out.println(String.format(Locale.ROOT, "%d regions, %d chunks%s", total.regions, total.chunks,
+			total.badChunks > 0 ? ", " + total.badChunks + " bad (see verify)" : ""));
+		out.println(String.format(Locale.ROOT, "  file size     %dKB in %d sectors", total.fileSectors * 4, total.fileSectors));
+		out.println(String.format(Locale.ROOT, "  allocated     %d sectors (%s of the files)", total.allocatedSectors,
+			percent(total.allocatedSectors, total.fileSectors)));
+		out.println(String.format(Locale.ROOT, "  needed        %d sectors for %dKB of chunk data", total.neededSectors,
+			total.storedBytes / 1024));
+		out.println(String.format(Locale.ROOT, "  free          %d sectors (%s) in %d runs", total.freeSectors,
+			percent(total.freeSectors, total.fileSectors), runs(total)));
+		out.println(String.format(Locale.ROOT, "  compacting    would save %dKB (%s)", total.compactSavings() / 1024,
+			percent(total.compactSavings() / 4096, total.fileSectors)));
+		StringBuilder histogram = new StringBuilder("  free runs    ");
+		for (int i = 0; i < RUN_BUCKETS; ++i)
+			histogram.append(' ').append(bucketName(i)).append(": ").append(total.freeRuns[i]);
+		out.println(histogram);
+		for (int v = 0; v <= RegionFile.VERSION_MASK; ++v)
+		{
+			if (total.versionChunks[v] == 0)
+				continue;
+			out.println(String.format(Locale.ROOT, "  version %-2d    %s: %d chunks, %dKB stored, %dKB decoded, ratio %.2f",
+				v, codecName(v), total.versionChunks[v], total.versionStored[v] / 1024, total.versionDecoded[v] / 1024,
+				(double) total.versionDecoded[v] / Math.max(1, total.versionStored[v])));
+		}
+		out.println("  largest chunks:");
+		for (Chunk chunk : total.largest)
+			out.println("    " + describe(chunk));
+		out.println("  chunks of " + NEAR_LIMIT_SECTORS + " sectors or more: " +
+			(total.nearLimit.isEmpty() ? "none" : total.nearLimit.size()) +
+			", of which past the 255 sector limit, stored outside the regions: " + total.externalChunks);
+		for (Chunk chunk : total.nearLimit)
+			out.println("    " + describe(chunk));
+	}
+
+	private static void printJson(List<Stats> regions, Stats total, PrintStream out)
+	{
+		StringBuilder json = new StringBuilder("{\"regions\":[");
+		for (int i = 0; i < regions.size(); ++i)
+		{
+			if (i > 0)
+				json.append(',');
+			appendJson(json, regions.get(i));
+		}
+		json.append("],\"total\":");
+		appendJson(json, total);
+		json.append('}');
+		out.println(json);
+	}
+
+	private static void appendJson(StringBuilder json, Stats stats)
+	{
+		json.append("{\"name\":\"").append(escape(stats.name)).append('"');
+		if (stats.error != null)
+			json.append(",\"error\":\"").append(escape(stats.error)).append('"');
+		json.append(",\"regions\":").append(stats.regions)
+			.append(",\"chunks\":").append(stats.chunks)
+			.append(",\"badChunks\":").append(stats.badChunks)
+			.append(",\"externalChunks\":").append(stats.externalChunks)
+			.append(",\"fileSectors\":").append(stats.fileSectors)
+			.append(",\"allocatedSectors\":").append(stats.allocatedSectors)
+			.append(",\"neededSectors\":").append(stats.neededSectors)
+			.append(",\"freeSectors\":").append(stats.freeSectors)
+			.append(",\"storedBytes\":").append(stats.storedBytes)
+			.append(",\"compactSavings\":").append(stats.compactSavings())
+			.append(",\"freeRuns\":{");
+		for (int i = 0; i < RUN_BUCKETS; ++i)
+			json.append(i > 0 ? "," : "").append('"').append(bucketName(i)).append("\":").append(stats.freeRuns[i]);
+		json.append("},\"versions\":[");
+		boolean first = true;
+		for (int v = 0; v <= RegionFile.VERSION_MASK; ++v)
+		{
+			if (stats.versionChunks[v] == 0)
+				continue;
+			json.append(first ? "" : ",").append("{\"version\":").append(v)
+				.append(",\"codec\":\"").append(escape(codecName(v))).append('"')
+				.append(",\"chunks\":").append(stats.versionChunks[v])
+				.append(",\"storedBytes\":").append(stats.versionStored[v])
+				.append(",\"decodedBytes\":").append(stats.versionDecoded[v]).append('}');
+			first = false;
+		}
+		json.append("],\"largest\":");
+		appendJson(json, stats.largest);
+		json.append(",\"nearLimit\":");
+		appendJson(json, stats.nearLimit);
+		json.append('}');
+	}
+
+	private static void appendJson(StringBuilder json, List<Chunk> chunks)
+	{
+		json.append('[');
+		for (int i = 0; i < chunks.size(); ++i)
+		{
+			Chunk chunk = chunks.get(i);
+			json.append(i > 0 ? "," : "").append("{\"region\":\"").append(escape(chunk.region))
+				.append("\",\"x\":").append(chunk.x).append(",\"z\":").append(chunk.z)
+				.append(",\"sectors\":").append(chunk.sectors).append(",\"bytes\":").append(chunk.bytes).append('}');
+		}
+		json.append(']');
+	}
+
+	/* s with the characters a JSON string cannot hold as they are escaped */
+	private static String escape(String s)
+	{
+		StringBuilder escaped = new StringBuilder(s.length());
+		for (int i = 0; i < s.length(); ++i)
+		{
+			char c = s.charAt(i);
+			if (c == '"' || c == '\\')
+				escaped.append('\\').append(c);
+			else if (c < 0x20)
+				escaped.append(String.format(Locale.ROOT, "\\u%04x", (int) c));
+			else
+				escaped.append(c);
+		}
+		return escaped.toString();
+	}
+
+	private static long runs(Stats stats)
+	{
+		long runs = 0;
+		for (long count : stats.freeRuns)
+			runs += count;
+		return runs;
+	}
+
+	private static String bucketName(int bucket)
+	{
+		if (bucket == 0)
+			return "1";
+		if (bucket == RUN_BUCKETS - 1)
+			return (1 << bucket) + "+";
+		return (1 << bucket) + "-" + ((2 << bucket) - 1);
+	}
+
+	private static String codecName(int version)
+	{
+		ChunkCodec codec = ChunkCodec.forVersion(version);
+		return codec != null ? codec.toString() : "unknown";
+	}
+
+	private static String percent(long part, long whole)
+	{ return String.format(Locale.ROOT, "%.1f%%", whole == 0 ? 0.0 : part * 100.0 / whole); }
+
+	private static String describe(Chunk chunk)
+	{ return chunk.region + "[" + chunk.x + "," + chunk.z + "]: " + chunk.bytes + " bytes in " + chunk.sectors + " sectors"; }
+
+	private RegionAnalyzer()
+	{}
+}
@@ -32,6 +32,28 @@ length - 1.
 
 A version of 2 represents a deflated (zlib compressed) NBT file. The deflated
 data is the chunk length - 1.
+
+A version of 3 represents an uncompressed NBT file.
+
+A version of 4 represents an LZ4 compressed NBT file: a 4-byte big-endian
+uncompressed length followed by a single LZ4 block.
+
+Versions are looked up in the ChunkCodec registry, so more can be added.
+Codec versions are below 32; the top three bits of the version byte are flags:
+
+0x20: the chunk data is followed by an 8-byte big-endian timestamp, which is
+included in the chunk length. It is no longer written, since other readers
+reject the flag, but is still accepted when reading; chunk timestamps are
+kept in the file "r.x.z.data.ts" next to the region instead, 1024 big-endian
+longs in offset table order.
+
+0x40: the chunk data (and timestamp, if any) is followed by a 4-byte
+big-endian CRC32C of it, which is included in the chunk length.
+
+0x80: the chunk needs 256 sectors or more, so it is stored outside the region.
+What is left in the region is a one-sector stub with a chunk length of 1. The
+version byte, without this flag, then the data and any trailers, are in the
+file "c.x.z.mcc" next to the region, where x and z are the chunk coordinates.
  */
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
@@ -39,40 +61,121 @@ import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
-import java.util.zip.DeflaterOutputStream;
-import java.util.zip.GZIPInputStream;
-import java.util.zip.InflaterInputStream;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.zip.CRC32C;
 
 public class RegionFile
 {
+	/* when chunk writes are forced to disk in journaled mode */
+	public enum FsyncPolicy
+	{
+		/* never: the operating system decides, so ordering is not guaranteed */
+		NEVER,
+		/* once per write-behind batch, flush() and close() */
+		PER_BATCH,
+		/* after every chunk */
+		PER_CHUNK
+	}
+
 	/* lets chunk writing be multithreaded by not locking the whole file as a
 	   chunk is serializing -- only writes when serialization is over */
 	class ChunkBuffer extends ByteArrayOutputStream
 	{
-		private int x, z;
+		private int x, z, version;
 
-		public ChunkBuffer(int x, int z)
+		public ChunkBuffer(int x, int z, int version)
 		{
 			super(8192); // initialize to 8KB
 			this.x = x;
 			this.z = z;
+			this.version = version;
 		}
 
 		@Override
-		public void close()
-		{ RegionFile.this.write(x, z, buf, count); }
+		public void close() throws IOException
+		{ RegionFile.this.commit(x, z, version, buf, count); }
 	}
 
 	static final int CHUNK_HEADER_SIZE = 5;
+	/* the part of the version byte naming the codec, and the flags above it */
+	static final int VERSION_MASK = 0x1F;
+	static final int FLAG_TIMESTAMP = 0x20;
+	static final int FLAG_CHECKSUM = 0x40;
+	static final int FLAG_EXTERNAL = 0x80;
 	private static final byte emptySector[] = new byte[4096];
+	/* forEachChunk reads runs of chunks up to this many sectors at once (1MB),
+	   reading over gaps between them of up to SCAN_GAP sectors */
+	private static final int SCAN_WINDOW = 256;
+	private static final int SCAN_GAP = 16;
+	/* sectors added at a time when the file has to grow (128KB) */
+	public static final int DEFAULT_GROWTH_STEP = 32;
+	/* journaled writes not yet committed before one is forced regardless of policy */
+	private static final int MAX_PENDING_COMMITS = 1024;
+	/* per-thread scratch space for readChunk and writeChunk */
+	private static final ThreadLocal<ByteBuffer> readBuffer = ThreadLocal.withInitial(() -> ByteBuffer.allocate(8192));
+	private static final ThreadLocal<ReusableBuffer> writeBuffer = ThreadLocal.withInitial(() -> new ReusableBuffer(8192));
 	private final File fileName;
 	private RandomAccessFile file;
+	/* used for positional reads, which never move the shared file pointer */
+	private FileChannel channel;
 	private final int offsets[];
-	private ArrayList<Boolean> sectorFree;
+	private SectorAllocator sectors;
 	private int sizeDelta;
+	/* chunk bytes written, headers and trailers included */
+	private long bytesWritten = 0;
+	private int growthStep = DEFAULT_GROWTH_STEP;
+	private boolean checksums = false;
+	private boolean timestamps = false;
+	/* when each chunk was written, from the timestamp file; null until used */
+	private long chunkTimestamps[];
+	private boolean timestampsDirty = false;
+	/* set once the region has changed without the timestamp file following */
+	private boolean timestampsStale = false;
 	private long lastModified = 0;
+	/* null unless write-behind has been enabled */
+	private volatile WriteBehindQueue writeQueue;
+	/* when set, offset table changes stay in offsets[] until the next batch
+	   boundary, flush() or close(), which write the whole table at once */
+	private boolean deferHeader = false;
+	private boolean headerDirty = false;
+	/* null unless journaled writes have been enabled */
+	private RegionJournal journal;
+	private FsyncPolicy fsyncPolicy = FsyncPolicy.NEVER;
+	/* offset table updates not yet committed, as (slot, offset) pairs */
+	private int pendingCommits[] = new int[64];
+	private int pendingCommitCount = 0;
+	/* sectors to free once the pending updates are committed, as (start, count) pairs */
+	private int pendingFrees[] = new int[64];
+	private int pendingFreeCount = 0;
+	/* overflow files no longer referenced by offsets[], to be deleted once the
+	   offset table on disk stops referencing them too */
+	private final List<File> staleExternal = new ArrayList<File>();
+	/* slots whose chunk is known to be a stub for an overflow file or not,
+	   and those that are */
+	private final BitSet stubKnown = new BitSet(1024);
+	private final BitSet stubs = new BitSet(1024);
+	/* kept by RegionStorage: how many users have the region pinned (-1 once
+	   the cache has closed it), and when it was last looked up */
+	final AtomicInteger pins = new AtomicInteger();
+	volatile long lastUsed;
+	/* bumped to odd before a write, a delete or compact() changes sectors or
+	   offsets[] and to even after, so lock-free readers can tell they raced
+	   with one; reading it also makes the offsets[] written before visible */
+	private volatile int layout = 0;
 
 	public RegionFile(File path)
 	{
@@ -84,36 +187,47 @@ public class RegionFile
 		{
 			if (path.exists())
 				lastModified = path.lastModified();
+			else
+				timestampsStale = true;
 			file = new RandomAccessFile(path, "rw");
+			channel = file.getChannel();
 			if (file.length() < 4096)
 			{
 				/* we need to write the chunk offset table */
-				for (int i = 0; i < 1024; ++i)
-					file.writeInt(0);
+				file.write(emptySector);
 				sizeDelta += 4096;
 			}
 			if ((file.length() & 0xfff) != 0)
 			{
 				/* the file size is not a multiple of 4KB, grow it */
-				for (int i = 0; i < (file.length() & 0xfff); ++i)
-					file.write((byte) 0);
+				file.setLength((file.length() + 0xfff) & ~0xfffL);
 			}
-			/* set up the available sector map */
-			int nSectors = (int) file.length() / 4096;
-			sectorFree = new ArrayList<Boolean>(nSectors);
-			for (int i = 0; i < nSectors; ++i)
-			{ sectorFree.add(true); }
-			sectorFree.set(0, false); // chunk offset table
 			file.seek(0);
 			for (int i = 0; i < 1024; ++i)
+				offsets[i] = file.readInt();
+			/* finish the offset table updates of a journaled session that did not
+			   close cleanly */
+			int redo[] = RegionJournal.replay(path);
+			if (redo.length > 0)
 			{
-				int offset = file.readInt();
-				offsets[i] = offset;
-				if (offset != 0 && (offset >> 8) + (offset & 0xFF) <= sectorFree.size())
+				debugln("REGION REPLAY " + redo.length / 2 + " offsets");
+				for (int i = 0; i < redo.length; i += 2)
 				{
-					for (int sectorNum = 0; sectorNum < (offset & 0xFF); ++sectorNum)
-					{ sectorFree.set((offset >> 8) + sectorNum, false); }
+					offsets[redo[i]] = redo[i + 1];
+					writeOffset(redo[i], redo[i + 1]);
 				}
+				channel.force(false);
+			}
+			RegionJournal.journalFile(path).delete();
+			/* set up the available sector map */
+			int nSectors = (int) (file.length() / 4096);
+			sectors = new SectorAllocator(nSectors);
+			sectors.mark(0, 1); // chunk offset table
+			for (int i = 0; i < 1024; ++i)
+			{
+				int offset = offsets[i];
+				if (offset != 0 && (offset >> 8) + (offset & 0xFF) <= nSectors)
+					sectors.mark(offset >> 8, offset & 0xFF);
 			}
 		}
 		catch (IOException e)
@@ -122,8 +236,167 @@ public class RegionFile
 		}
 	}
 
+	/* saves any queued chunk writes, then closes the file */
 	public void close() throws IOException
-	{ file.close(); }
+	{
+		WriteBehindQueue queue = writeQueue;
+		try
+		{
+			if (queue != null)
+				queue.close();
+		}
+		finally
+		{
+			synchronized (this)
+			{
+				commitHeader();
+				if (journal != null)
+					journal.close();
+				trimTrailingSectors();
+				if (timestampsDirty)
+					writeTimestamps();
+				file.close();
+			}
+		}
+	}
+
+	/* when set, every chunk written from now on carries a CRC32C of its data,
+	   which is checked whenever it is read */
+	public synchronized void setChecksums(boolean enabled)
+	{ checksums = enabled; }
+
+	/* when set, the time every chunk is written from now on is recorded in
+	   the region's timestamp file, which getChunkTimestamp() reads; the
+	   chunks themselves are stored as usual */
+	public synchronized void setTimestamps(boolean enabled)
+	{ timestamps = enabled; }
+
+	/* sets how many sectors the file grows by at least when no free space
+	   fits a chunk; the extra sectors are preallocated with a single
+	   setLength, and whatever is still unused is cut off again on close */
+	public synchronized void setGrowthStep(int sectors)
+	{ growthStep = Math.max(1, sectors); }
+
+	/* switches to crash-safe writes: chunks are always written to freshly
+	   allocated sectors, and the offset table only changes through a redo
+	   journal that is replayed the next time the region is opened, so a torn
+	   write never loses the previous version of a chunk. The policy decides
+	   how often data and journal are forced to disk; until a write is
+	   committed, its old sectors are kept. */
+	public synchronized void enableJournal(FsyncPolicy policy)
+	{
+		if (journal == null)
+			journal = new RegionJournal(fileName);
+		fsyncPolicy = policy;
+	}
+
+	/* switches to write-behind mode: closed chunk streams are queued, at most
+	   capacity chunks at a time, and saved by a background task on executor
+	   (or a shared daemon pool if executor is null), so the thread that closes
+	   the stream never waits on the disk. Later writes to a chunk that is still
+	   queued replace the earlier ones, and reads see queued data. */
+	public synchronized void enableWriteBehind(int capacity, Executor executor)
+	{
+		if (writeQueue == null)
+			writeQueue = new WriteBehindQueue(this, capacity,
+				executor != null ? executor : WriteBehindQueue.defaultExecutor);
+	}
+
+	/* blocks until every chunk written so far is in the file, and committed
+	   if journaled writes are enabled */
+	public void flush() throws IOException
+	{
+		WriteBehindQueue queue = writeQueue;
+		if (queue != null)
+			queue.flush();
+		synchronized (this)
+		{
+			commitHeader();
+		}
+	}
+
+	/* switches the deferred offset table mode on or off: instead of one 4-byte
+	   write per saved chunk, the table is written as a single 4KB write after
+	   each write-behind batch, on flush() and on close(), always after the
+	   chunk data it points to; sectors a chunk moved away from are only
+	   reused once the table on disk no longer points at them */
+	public synchronized void setDeferredHeader(boolean defer) throws IOException
+	{
+		deferHeader = defer;
+		if (!defer && headerDirty)
+		{
+			writeHeader();
+			releasePendingFrees();
+		}
+	}
+
+	/* called by the write-behind queue after each batch of writes */
+	synchronized void endBatch()
+	{
+		try
+		{
+			commitHeader();
+		}
+		catch (IOException e)
+		{e.printStackTrace();}
+	}
+
+	/* brings the offset table on disk up to date with offsets[] */
+	private void commitHeader() throws IOException
+	{
+		if (journal != null)
+			commitJournal();
+		else if (headerDirty)
+		{
+			writeHeader();
+			releasePendingFrees();
+		}
+		for (File stale : staleExternal)
+			stale.delete();
+		staleExternal.clear();
+		if (timestampsDirty)
+			writeTimestamps();
+	}
+
+	/* writes the whole offset table in one write */
+	private void writeHeader() throws IOException
+	{
+		ByteBuffer header = ByteBuffer.allocate(4096);
+		header.asIntBuffer().put(offsets);
+		while (header.hasRemaining())
+			channel.write(header, header.position());
+		headerDirty = false;
+	}
+
+	/* makes the journaled writes since the last commit durable, in order:
+	   chunk data, journal records, offset table (offsets[] holds exactly the
+	   committed state at this point); the journal is then emptied
+	   and the sectors the old chunk versions used are given back */
+	private void commitJournal() throws IOException
+	{
+		if (pendingCommitCount == 0)
+			return;
+		boolean sync = fsyncPolicy != FsyncPolicy.NEVER;
+		if (sync)
+			channel.force(false);
+		journal.append(pendingCommits, pendingCommitCount);
+		if (sync)
+			journal.force();
+		writeHeader();
+		if (sync)
+			channel.force(false);
+		journal.clear();
+		releasePendingFrees();
+		pendingCommitCount = 0;
+	}
+
+	/* gives back the sectors freed since the offset table was last written */
+	private void releasePendingFrees()
+	{
+		for (int i = 0; i < pendingFreeCount; ++i)
+			sectors.free(pendingFrees[i * 2], pendingFrees[i * 2 + 1]);
+		pendingFreeCount = 0;
+	}
 
 	// various small debug printing helpers
 	private void debug(String in)
@@ -144,8 +417,10 @@ public class RegionFile
 	{ debug(mode, x, z, in + "\n"); }
 
 	/* gets an (uncompressed) stream representing the chunk data
-	   returns null if the chunk is not found or an error occurs  */
-	public synchronized DataInputStream getChunkDataInputStream(int x, int z)
+	   returns null if the chunk is not found or an error occurs
+	   not synchronized: the chunk header and payload are fetched with a single
+	   positional read, so any number of threads can read from one region at once */
+	public DataInputStream getChunkDataInputStream(int x, int z)
 	{
 		if (outOfBounds(x, z))
 		{
@@ -154,66 +429,394 @@ public class RegionFile
 		}
 		try
 		{
-			int offset = getOffset(x, z);
-			if (offset == 0)
+			WriteBehindQueue queue = writeQueue;
+			if (queue != null)
+			{
+				/* a chunk that is still queued is newer than what the file holds */
+				WriteBehindQueue.PendingWrite pending = queue.get(x + z * 32);
+				if (pending != null)
+					return decode(x, z, pending.version, new ByteArrayInputStream(pending.data, 0, pending.length));
+			}
+			ByteBuffer chunk = readStoredChunk(x, z, null);
+			if (chunk == null)
 			{
 				// debugln("READ", x, z, "miss");
 				return null;
 			}
-			int sectorNumber = offset >> 8;
-			int numSectors = offset & 0xFF;
-			if (sectorNumber + numSectors > sectorFree.size())
+			int version = unwrapChunk(chunk);
+			return decode(x, z, version, new ByteBufferInputStream(chunk));
+		}
+		catch (IOException e)
+		{
+			debugln("READ", x, z, e.getMessage());
+			return null;
+		}
+	}
+
+	/* decodes the chunk at (x,z) straight into dst, starting at its position
+	   returns the number of bytes decoded, or -1 if the chunk is not stored
+	   throws CorruptChunkException if the chunk is damaged, and
+	   BufferOverflowException if it does not fit in dst
+	   apart from growing per-thread buffers to the largest chunk seen, this
+	   allocates nothing, so it suits mass chunk loading better than streams */
+	public int readChunk(int x, int z, ByteBuffer dst) throws IOException
+	{
+		if (outOfBounds(x, z))
+			throw new IllegalArgumentException("chunk out of bounds: " + x + "," + z);
+		WriteBehindQueue queue = writeQueue;
+		if (queue != null)
+		{
+			WriteBehindQueue.PendingWrite pending = queue.get(x + z * 32);
+			if (pending != null)
+				return codecFor(pending.version).decode(ByteBuffer.wrap(pending.data, 0, pending.length), dst);
+		}
+		ByteBuffer chunk = readStoredChunk(x, z, readBuffer.get());
+		if (chunk == null)
+			return -1;
+		if (chunk.hasArray() && chunk.capacity() > readBuffer.get().capacity())
+			readBuffer.set(chunk);
+		ChunkCodec codec = codecFor(unwrapChunk(chunk));
+		int start = dst.position();
+		try
+		{
+			return codec.decode(chunk, dst);
+		}
+		catch (CorruptChunkException e)
+		{
+			throw e;
+		}
+		catch (IOException e)
+		{
+			dst.position(start);
+			throw new CorruptChunkException("chunk " + x + "," + z + " cannot be decoded: " + e.getMessage(), e);
+		}
+	}
+
+	/* the time the chunk at (x,z) was written, in milliseconds since the
+	   epoch, if it was written with timestamps enabled
+	   returns 0 if the chunk is not stored or has no timestamp; a chunk still
+	   in the write-behind queue is flushed first */
+	public long getChunkTimestamp(int x, int z) throws IOException
+	{
+		if (outOfBounds(x, z))
+			throw new IllegalArgumentException("chunk out of bounds: " + x + "," + z);
+		WriteBehindQueue queue = writeQueue;
+		if (queue != null && queue.get(x + z * 32) != null)
+			queue.flush();
+		synchronized (this)
+		{
+			if (offsets[x + z * 32] == 0)
+				return 0;
+			return timestampTable()[x + z * 32];
+		}
+	}
+
+	/* visits every stored chunk, in the order of their sectors in the file
+	   the offset table is read once, and neighbouring chunks are read together
+	   with one large positional read, so a whole region goes at sequential
+	   disk speed. Chunks are decoded and visited on workers if it is not
+	   null, several at a time, otherwise on the calling thread. Chunks whose
+	   header is damaged are skipped. Queued write-behind data is flushed
+	   first; chunks written during the scan may be seen in either version. */
+	public void forEachChunk(ChunkVisitor visitor) throws IOException
+	{ forEachChunk(visitor, null); }
+
+	public void forEachChunk(ChunkVisitor visitor, Executor workers) throws IOException
+	{
+		flush();
+		int snapshot[];
+		synchronized (this)
+		{
+			snapshot = offsets.clone();
+		}
+		int slots[] = slotsBySector(snapshot);
+		ChunkVisitDispatcher dispatcher = new ChunkVisitDispatcher(visitor, workers, true);
+		ByteBuffer window = ByteBuffer.allocate(SCAN_WINDOW * 4096);
+		ByteBuffer chunks[] = new ByteBuffer[slots.length];
+		int versions[] = new int[slots.length];
+		try
+		{
+			for (int first = 0, next; first < slots.length; first = next)
 			{
-				debugln("READ", x, z, "invalid sector");
-				return null;
+				/* gather the run of chunks that fits one read */
+				int start = snapshot[slots[first]] >> 8;
+				int end = start + (snapshot[slots[first]] & 0xFF);
+				for (next = first + 1; next < slots.length; ++next)
+				{
+					int sectorNumber = snapshot[slots[next]] >> 8;
+					int sectorEnd = sectorNumber + (snapshot[slots[next]] & 0xFF);
+					if (sectorNumber - end > SCAN_GAP || Math.max(end, sectorEnd) - start > SCAN_WINDOW)
+						break;
+					end = Math.max(end, sectorEnd);
+				}
+				if (window.capacity() < (end - start) * 4096)
+					window = ByteBuffer.allocate((end - start) * 4096);
+				synchronized (this)
+				{
+					window.clear().limit((end - start) * 4096);
+					readFully(window, (long) start * 4096);
+					for (int i = first; i < next; ++i)
+					{
+						int slot = slots[i];
+						chunks[i] = null;
+						try
+						{
+							if (offsets[slot] == snapshot[slot])
+								chunks[i] = chunkInWindow(window, start, snapshot[slot]);
+							else if (offsets[slot] != 0)
+							{
+								/* rewritten since the table was read */
+								chunks[i] = readSectors(offsets[slot], null);
+							}
+							if (chunks[i] != null && (chunks[i].get(chunks[i].position()) & FLAG_EXTERNAL) != 0)
+								chunks[i] = mapExternal(externalFile(fileName, slot & 31, slot >> 5));
+							if (chunks[i] != null)
+								versions[i] = unwrapChunk(chunks[i]);
+						}
+						catch (CorruptChunkException e)
+						{
+							debugln("SCAN", slot & 31, slot >> 5, e.getMessage());
+							chunks[i] = null;
+						}
+					}
+				}
+				for (int i = first; i < next; ++i)
+				{
+					if (chunks[i] != null)
+						dispatcher.dispatch(slots[i] & 31, slots[i] >> 5, versions[i], chunks[i]);
+					chunks[i] = null;
+				}
 			}
-			file.seek(sectorNumber * 4096);
-			int length = file.readInt();
-			if (length > 4096 * numSectors)
+		}
+		finally
+		{
+			dispatcher.finish();
+		}
+	}
+
+	/* the slots of the chunks in offsets that have sectors, in sector order */
+	static int[] slotsBySector(int[] offsets)
+	{
+		long keyed[] = new long[offsets.length];
+		int n = 0;
+		for (int slot = 0; slot < offsets.length; ++slot)
+		{
+			if (offsets[slot] >> 8 != 0)
+				keyed[n++] = (long) (offsets[slot] >>> 8) << 32 | slot;
+		}
+		Arrays.sort(keyed, 0, n);
+		int slots[] = new int[n];
+		for (int i = 0; i < n; ++i)
+			slots[i] = (int) keyed[i];
+		return slots;
+	}
+
+	/* a view of the chunk stored at offset within window, which holds the
+	   sectors from start on, positioned at its version byte and limited to
+	   the end of its data */
+	private static ByteBuffer chunkInWindow(ByteBuffer window, int start, int offset) throws CorruptChunkException
+	{
+		int position = ((offset >> 8) - start) * 4096;
+		int numSectors = offset & 0xFF;
+		if (position + CHUNK_HEADER_SIZE > window.position())
+			throw new CorruptChunkException("invalid sector " + (offset >> 8));
+		int length = window.getInt(position);
+		if (length < 1 || length > numSectors * 4096 - 4 || position + 4 + length > window.position())
+			throw new CorruptChunkException("invalid length: " + length + " in " + numSectors + " sectors");
+		ByteBuffer chunk = window.duplicate();
+		chunk.limit(position + 4 + length).position(position + 4);
+		return chunk;
+	}
+
+	/* reads the sectors of the chunk at (x,z) and throws them away, so the
+	   next real read finds them in the OS page cache
+	   returns false if the chunk is not stored */
+	boolean prefetchChunk(int x, int z) throws IOException
+	{
+		ByteBuffer chunk = readStoredChunk(x, z, readBuffer.get());
+		if (chunk == null)
+			return false;
+		if (chunk.hasArray() && chunk.capacity() > readBuffer.get().capacity())
+			readBuffer.set(chunk);
+		return true;
+	}
+
+	/* encodes the remaining bytes of data with codec and writes them as the
+	   chunk at (x,z), going through the write-behind queue if it is enabled */
+	public void writeChunk(int x, int z, ByteBuffer data, ChunkCodec codec) throws IOException
+	{
+		if (outOfBounds(x, z))
+			throw new IllegalArgumentException("chunk out of bounds: " + x + "," + z);
+		ReusableBuffer encoded = writeBuffer.get();
+		encoded.reset();
+		codec.encode(data, encoded);
+		if (writeQueue != null)
+			commit(x, z, codec.getVersion(), encoded.toByteArray(), encoded.size()); // the queue keeps the array
+		else
+			commit(x, z, codec.getVersion(), encoded.array(), encoded.size());
+	}
+
+	private static ChunkCodec codecFor(int version) throws IOException
+	{
+		ChunkCodec codec = ChunkCodec.forVersion(version);
+		if (codec == null)
+			throw new CorruptChunkException("unknown chunk version " + (version & 0xFF));
+		return codec;
+	}
+
+	/* takes a chunk positioned at its version byte and limited to the end of
+	   its data, verifies and strips the trailers its flags announce, and
+	   leaves it covering just the encoded data
+	   returns the codec version */
+	static int unwrapChunk(ByteBuffer chunk) throws IOException
+	{
+		int version = chunk.get() & 0xFF;
+		if ((version & FLAG_CHECKSUM) != 0)
+		{
+			if (chunk.remaining() < 4)
+				throw new CorruptChunkException("chunk too short for its checksum");
+			int end = chunk.limit() - 4;
+			int expected = chunk.getInt(end);
+			chunk.limit(end);
+			CRC32C crc = new CRC32C();
+			crc.update(chunk.duplicate());
+			if ((int) crc.getValue() != expected)
+				throw new CorruptChunkException("checksum mismatch");
+		}
+		/* only written by older versions, see FLAG_TIMESTAMP */
+		if ((version & FLAG_TIMESTAMP) != 0)
+		{
+			if (chunk.remaining() < 8)
+				throw new CorruptChunkException("chunk too short for its timestamp");
+			chunk.limit(chunk.limit() - 8);
+		}
+		return version & VERSION_MASK;
+	}
+
+	/* reads the sectors of the chunk at (x,z) like readSectors, retrying if
+	   a write, a delete or compact() changed the region in the meantime, as
+	   its sectors may have been overwritten or reused; for a chunk stored
+	   outside the region, its overflow file is mapped instead
+	   returns null if the chunk is not stored */
+	private ByteBuffer readStoredChunk(int x, int z, ByteBuffer buf) throws IOException
+	{
+		while (true)
+		{
+			int seen = layout;
+			if ((seen & 1) != 0)
 			{
-				debugln("READ", x, z, "invalid length: " + length + " > 4096 * " + numSectors);
-				return null;
+				/* the writer holds the lock until it is done */
+				synchronized (this)
+				{
+					continue;
+				}
 			}
-			byte version = file.readByte();
-			if (version == 1)
+			try
 			{
-				byte[] data = new byte[length - 1];
-				file.read(data);
-				DataInputStream ret = new DataInputStream(new GZIPInputStream(
-					new ByteArrayInputStream(data)));
-				// debug("READ", x, z, " = found");
-				return ret;
+				int offset = getOffset(x, z);
+				ByteBuffer chunk = offset != 0 ? readSectors(offset, buf) : null;
+				if (chunk != null && (chunk.get(chunk.position()) & FLAG_EXTERNAL) != 0)
+					chunk = mapExternal(externalFile(fileName, x, z));
+				if (layout == seen)
+					return chunk;
 			}
-			else if (version == 2)
+			catch (IOException e)
 			{
-				byte[] data = new byte[length - 1];
-				file.read(data);
-				DataInputStream ret = new DataInputStream(new InflaterInputStream(
-					new ByteArrayInputStream(data)));
-				// debug("READ", x, z, " = found");
-				return ret;
+				/* the old file may have been closed under us */
+				if (layout == seen)
+					throw e;
 			}
-			debugln("READ", x, z, "unknown version " + version);
-			return null;
 		}
-		catch (IOException e)
+	}
+
+	/* reads the sectors of the chunk stored at offset with one positional read
+	   returns a buffer positioned at the version byte and limited to the end of
+	   the chunk data; buf is used if it is large enough, otherwise a new buffer
+	   is allocated */
+	private ByteBuffer readSectors(int offset, ByteBuffer buf) throws IOException
+	{
+		int sectorNumber = offset >> 8;
+		int numSectors = offset & 0xFF;
+		if (buf == null || buf.capacity() < numSectors * 4096)
+			buf = ByteBuffer.allocate(numSectors * 4096);
+		buf.clear().limit(numSectors * 4096);
+		if (sectorNumber == 0 || !readFully(buf, (long) sectorNumber * 4096))
+			throw new CorruptChunkException("invalid sector " + sectorNumber);
+		buf.flip();
+		int length = buf.getInt();
+		if (length < 1 || length > buf.remaining())
+			throw new CorruptChunkException("invalid length: " + length + " in " + numSectors + " sectors");
+		buf.limit(CHUNK_HEADER_SIZE - 1 + length);
+		return buf;
+	}
+
+	/* wraps encoded chunk data in a stream that decodes it with the codec
+	   registered for its version
+	   returns null if the version is unknown */
+	private DataInputStream decode(int x, int z, int version, InputStream in) throws IOException
+	{
+		ChunkCodec codec = ChunkCodec.forVersion(version);
+		if (codec == null)
 		{
-			debugln("READ", x, z, "exception");
+			debugln("READ", x, z, "unknown version " + (version & 0xFF));
 			return null;
 		}
+		DataInputStream ret = new DataInputStream(codec.decode(in));
+		// debug("READ", x, z, " = found");
+		return ret;
+	}
+
+	/* fills buf from the given file position without touching the file pointer
+	   returns false if the end of the file is reached first */
+	private boolean readFully(ByteBuffer buf, long position) throws IOException
+	{
+		while (buf.hasRemaining())
+		{
+			int n = channel.read(buf, position + buf.position());
+			if (n < 0)
+				return false;
+		}
+		return true;
 	}
 
 	public DataOutputStream getChunkDataOutputStream(int x, int z)
+	{ return getChunkDataOutputStream(x, z, ChunkCodec.DEFLATE); }
+
+	/* gets a stream that encodes the chunk with the given codec and writes it
+	   to the region when it is closed */
+	public DataOutputStream getChunkDataOutputStream(int x, int z, ChunkCodec codec)
 	{
 		if (outOfBounds(x, z))
 			return null;
-		return new DataOutputStream(new DeflaterOutputStream(
-			new ChunkBuffer(x, z)));
+		try
+		{
+			return new DataOutputStream(codec.encode(
+				new ChunkBuffer(x, z, codec.getVersion())));
+		}
+		catch (IOException e)
+		{
+			debugln("SAVE", x, z, "exception");
+			return null;
+		}
 	}
 
 	private int getOffset(int x, int z) throws IOException
 	{ return offsets[x + z * 32]; }
 
+	/* the first sector of the chunk in slot x + z * 32, or 0 if it has none */
+	int getSectorNumber(int slot)
+	{ return offsets[slot] >> 8; }
+
+	/* hands a finished chunk buffer over to be written */
+	private void commit(int x, int z, int version, byte[] data, int length) throws IOException
+	{
+		WriteBehindQueue queue = writeQueue;
+		if (queue != null)
+			queue.enqueue(x + z * 32, version, data, length);
+		else
+			write(x, z, version, data, length);
+	}
+
 	/* gets how much the region file has grown since it was last checked */
 	public synchronized int getSizeDelta()
 	{
@@ -222,6 +825,13 @@ public class RegionFile
 		return ret;
 	}
 
+	/* the number of chunk bytes written to the file since it was opened */
+	public synchronized long getBytesWritten()
+	{ return bytesWritten; }
+
+	public File getFile()
+	{ return fileName; }
+
 	/* the modification date of the region file when it was first opened */
 	public long lastModified()
 	{ return lastModified; }
@@ -233,94 +843,460 @@ public class RegionFile
 	private void setOffset(int x, int z, int offset) throws IOException
 	{
 		offsets[x + z * 32] = offset;
-		file.seek((x + z * 32) * 4);
-		file.writeInt(offset);
+		if (journal != null)
+		{
+			if (pendingCommitCount * 2 == pendingCommits.length)
+				pendingCommits = Arrays.copyOf(pendingCommits, pendingCommits.length * 2);
+			pendingCommits[pendingCommitCount * 2] = x + z * 32;
+			pendingCommits[pendingCommitCount * 2 + 1] = offset;
+			pendingCommitCount++;
+		}
+		else if (deferHeader)
+			headerDirty = true;
+		else
+			writeOffset(x + z * 32, offset);
+	}
+
+	/* writes one entry of the offset table on disk */
+	private void writeOffset(int slot, int offset) throws IOException
+	{
+		ByteBuffer entry = ByteBuffer.allocate(4).putInt(0, offset);
+		while (entry.hasRemaining())
+			channel.write(entry, slot * 4 + entry.position());
+	}
+
+	/* makes room for count more sectors at the end of the file in one step,
+	   rounded up to the growth step */
+	private void growFile(int count) throws IOException
+	{
+		count = (count + growthStep - 1) / growthStep * growthStep;
+		/* setLength leaves the new sectors' contents undefined (sparse, on most
+		   file systems); that is fine, no sector is read before it is written */
+		file.setLength((long) (sectors.size() + count) * 4096);
+		sectors.grow(count);
+		sizeDelta += 4096 * count;
+	}
+
+	/* gives back the free sectors at the end of the file */
+	private void trimTrailingSectors() throws IOException
+	{
+		if (sectors.trailingFree() > 0)
+		{
+			file.setLength((long) sectors.truncate(1) * 4096);
+			/* the timestamp file has to stay newer than the region */
+			if (chunkTimestamps != null)
+				timestampsDirty = true;
+		}
 	}
 
-	/* write a chunk data to the region file at specified sector number */
-	private void write(int sectorNumber, byte[] data, int length) throws IOException
+	/* frees sectors once the pending offset table updates are written */
+	private void freeAfterCommit(int sectorNumber, int count)
+	{
+		if (pendingFreeCount * 2 == pendingFrees.length)
+			pendingFrees = Arrays.copyOf(pendingFrees, pendingFrees.length * 2);
+		pendingFrees[pendingFreeCount * 2] = sectorNumber;
+		pendingFrees[pendingFreeCount * 2 + 1] = count;
+		pendingFreeCount++;
+	}
+
+	/* write a chunk data to the region file at specified sector number; for a
+	   chunk stored outside the region, whose data is already in its overflow
+	   file, only the stub is written */
+	private void write(int sectorNumber, int version, byte[] data, int length) throws IOException
 	{
 		debugln(" " + sectorNumber);
-		file.seek(sectorNumber * 4096);
-		file.writeInt(length + 1); // chunk length
-		file.writeByte(2); // chunk version number
+		int flags = checksums ? FLAG_CHECKSUM : 0;
+		file.seek((long) sectorNumber * 4096);
+		if (isExternal(length))
+		{
+			file.writeInt(1); // chunk length
+			file.writeByte(version | flags | FLAG_EXTERNAL);
+			return;
+		}
+		bytesWritten += storedSize(length);
+		file.writeInt(storedSize(length) - 4); // chunk length
+		file.writeByte(version | flags); // chunk version number
 		file.write(data, 0, length); // chunk data
+		if (checksums)
+			file.write(trailer(data, length));
+	}
+
+	/* the checksum that follows length bytes of chunk data, if checksums are
+	   enabled */
+	private byte[] trailer(byte[] data, int length)
+	{
+		ByteBuffer trailer = ByteBuffer.allocate(checksums ? 4 : 0);
+		if (checksums)
+		{
+			CRC32C crc = new CRC32C();
+			crc.update(data, 0, length);
+			trailer.putInt((int) crc.getValue());
+		}
+		return trailer.array();
+	}
+
+	/* the bytes a chunk of length encoded bytes takes up, headers and trailers included */
+	private int storedSize(int length)
+	{ return CHUNK_HEADER_SIZE + length + (checksums ? 4 : 0); }
+
+	/* is a chunk of length encoded bytes too large for the region? */
+	private boolean isExternal(int length)
+	{ return storedSize(length) / 4096 + 1 >= 256; }
+
+	/* the overflow file of the chunk at (x,z) of a region (see FLAG_EXTERNAL);
+	   for a region not named "r.x.z.data", it is named after the region */
+	static File externalFile(File regionFile, int x, int z)
+	{
+		Matcher m = RegionScanner.regionFilePattern.matcher(regionFile.getName());
+		if (m.matches())
+		{
+			try
+			{
+				int chunkX = (Integer.parseInt(m.group(1)) << 5) + x;
+				int chunkZ = (Integer.parseInt(m.group(2)) << 5) + z;
+				return new File(regionFile.getParentFile(), "c." + chunkX + "." + chunkZ + ".mcc");
+			}
+			catch (NumberFormatException e)
+			{
+				/* not a real region coordinate */
+			}
+		}
+		return new File(regionFile.getParentFile(), regionFile.getName() + ".c." + x + "." + z + ".mcc");
+	}
+
+	/* the timestamp file of a region (see FLAG_TIMESTAMP) */
+	static File timestampFile(File regionFile)
+	{ return new File(regionFile.getParentFile(), regionFile.getName() + ".ts"); }
+
+	/* the chunk timestamps, read from the timestamp file on first use; a file
+	   older than the region, or one the region has changed without, was not
+	   kept up to date by whatever wrote the region last, so it is ignored */
+	private long[] timestampTable() throws IOException
+	{
+		if (chunkTimestamps == null)
+		{
+			chunkTimestamps = new long[1024];
+			File table = timestampFile(fileName);
+			if (!timestampsStale && table.isFile() && table.lastModified() >= lastModified)
+			{
+				byte stored[] = Files.readAllBytes(table.toPath());
+				if (stored.length == 1024 * 8)
+					ByteBuffer.wrap(stored).asLongBuffer().get(chunkTimestamps);
+			}
+		}
+		return chunkTimestamps;
+	}
+
+	/* writes the timestamp file, after the region data it describes */
+	private void writeTimestamps() throws IOException
+	{
+		ByteBuffer table = ByteBuffer.allocate(1024 * 8);
+		table.asLongBuffer().put(chunkTimestamps);
+		Files.write(timestampFile(fileName).toPath(), table.array());
+		timestampsDirty = false;
+	}
+
+	/* records that the chunk in slot was just written, or removed */
+	private void stamp(int slot, boolean stored) throws IOException
+	{
+		if (timestamps || chunkTimestamps != null)
+		{
+			timestampTable()[slot] = stored && timestamps ? System.currentTimeMillis() : 0;
+			timestampsDirty = true;
+		}
+		else
+			timestampsStale = true;
 	}
 
-	/* write a chunk at (x,z) with length bytes of data to disk */
-	protected synchronized void write(int x, int z, byte[] data, int length)
+	/* maps an overflow file read-only, so its chunk is read without being
+	   copied; the mapping stays valid after the file is replaced or deleted
+	   returns a buffer positioned at the version byte, like readSectors */
+	static ByteBuffer mapExternal(File external) throws IOException
 	{
+		try (FileChannel in = FileChannel.open(external.toPath(), StandardOpenOption.READ))
+		{
+			long size = in.size();
+			if (size < 1 || size > Integer.MAX_VALUE)
+				throw new CorruptChunkException("invalid overflow file " + external.getName() + " of " + size + " bytes");
+			return in.map(FileChannel.MapMode.READ_ONLY, 0, size);
+		}
+		catch (NoSuchFileException e)
+		{
+			throw new CorruptChunkException("overflow file " + external.getName() + " is missing");
+		}
+	}
+
+	/* writes a chunk too large for the region to its overflow file, through a
+	   temporary file that is renamed into place, so the file is always whole */
+	private void writeExternal(int x, int z, int version, byte[] data, int length) throws IOException
+	{
+		File external = externalFile(fileName, x, z);
+		File temp = new File(external.getPath() + ".tmp");
+		try
+		{
+			try (RandomAccessFile out = new RandomAccessFile(temp, "rw"))
+			{
+				out.setLength(0);
+				out.writeByte(version | (checksums ? FLAG_CHECKSUM : 0));
+				out.write(data, 0, length);
+				out.write(trailer(data, length));
+				if (fsyncPolicy != FsyncPolicy.NEVER)
+					out.getChannel().force(false);
+			}
+			Files.move(temp.toPath(), external.toPath(), StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+		}
+		catch (IOException e)
+		{
+			temp.delete();
+			throw new IOException("chunk " + x + "," + z + " of " + fileName.getName() + " is too large for the region (" +
+				storedSize(length) + " bytes) and could not be written to " + external.getName() + ": " + e.getMessage(), e);
+		}
+		staleExternal.remove(external);
+		bytesWritten += storedSize(length);
+	}
+
+	/* is the chunk stored at sectorNumber for slot a stub for an overflow
+	   file? its header is read the first time a slot is asked about */
+	private boolean isStub(int slot, int sectorNumber) throws IOException
+	{
+		if (!stubKnown.get(slot))
+		{
+			ByteBuffer header = ByteBuffer.allocate(CHUNK_HEADER_SIZE);
+			stubs.set(slot, readFully(header, (long) sectorNumber * 4096) && (header.get(4) & FLAG_EXTERNAL) != 0);
+			stubKnown.set(slot);
+		}
+		return stubs.get(slot);
+	}
+
+	/* gets rid of the overflow file of the chunk at (x,z), once the offset
+	   table on disk no longer points at its stub */
+	private void dropExternal(int x, int z)
+	{
+		File external = externalFile(fileName, x, z);
+		if (journal == null && !deferHeader)
+			external.delete();
+		else if (external.exists() && !staleExternal.contains(external))
+			staleExternal.add(external);
+	}
+
+	/* rewrites the stored chunks back to back in (z,x) order from sector 1 on
+	   and cuts the file to fit, so the holes left by chunks that moved or
+	   shrank are given back and neighbouring chunks end up next to each other
+	   the copy is made in "r.x.z.data.compact", forced to disk and renamed over
+	   the region, so a crash leaves either the old or the new file, whole.
+	   Chunks are copied as stored, trailers included, without being decoded;
+	   a chunk whose length is damaged keeps all of its sectors, and one whose
+	   sectors lie past the end of the file, which could not be read anyway, is
+	   dropped. Reads go on from the old file during the copy; writes wait.
+	   returns the number of bytes the file shrank by */
+	public long compact() throws IOException
+	{
+		/* let queued writes land first, or they would wait for the copy */
+		flush();
+		synchronized (this)
+		{
+			commitHeader();
+			/* the rewritten region is newer than its timestamp file, which has
+			   to be written again to stay valid */
+			boolean keepTimestamps = chunkTimestamps != null || timestampFile(fileName).isFile();
+			if (keepTimestamps)
+				timestampTable();
+			long oldLength = file.length();
+			int compacted[] = new int[1024];
+			int nSectors = 1;
+			File temp = new File(fileName.getPath() + ".compact");
+			RandomAccessFile out = new RandomAccessFile(temp, "rw");
+			try
+			{
+				FileChannel target = out.getChannel();
+				out.setLength(0);
+				ByteBuffer length = ByteBuffer.allocate(4);
+				for (int slot = 0; slot < 1024; ++slot)
+				{
+					int sectorNumber = offsets[slot] >> 8;
+					int numSectors = offsets[slot] & 0xFF;
+					if (sectorNumber == 0 || (long) (sectorNumber + numSectors) * 4096 > oldLength)
+						continue;
+					length.clear();
+					if (readFully(length, (long) sectorNumber * 4096))
+					{
+						int stored = length.getInt(0);
+						if (stored >= 1 && stored <= numSectors * 4096 - 4)
+							numSectors = (stored + 4) / 4096 + 1;
+					}
+					long position = (long) sectorNumber * 4096;
+					long end = position + numSectors * 4096L;
+					target.position((long) nSectors * 4096);
+					while (position < end)
+					{
+						long n = channel.transferTo(position, end - position, target);
+						if (n <= 0)
+							throw new IOException("short copy of " + fileName);
+						position += n;
+					}
+					compacted[slot] = (nSectors << 8) | numSectors;
+					nSectors += numSectors;
+				}
+				ByteBuffer header = ByteBuffer.allocate(4096);
+				header.asIntBuffer().put(compacted);
+				while (header.hasRemaining())
+					target.write(header, header.position());
+				out.setLength((long) nSectors * 4096);
+				target.force(true);
+				Files.move(temp.toPath(), fileName.toPath(), StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+			}
+			catch (IOException | RuntimeException e)
+			{
+				out.close();
+				temp.delete();
+				throw e;
+			}
+			/* the file is replaced; now switch over to it */
+			RandomAccessFile old = file;
+			layout++;
+			try
+			{
+				file = out;
+				channel = out.getChannel();
+				System.arraycopy(compacted, 0, offsets, 0, 1024);
+				sectors = new SectorAllocator(nSectors);
+				sectors.mark(0, nSectors);
+				headerDirty = false;
+			}
+			finally
+			{
+				layout++;
+			}
+			old.close();
+			if (keepTimestamps)
+				writeTimestamps();
+			long newLength = (long) nSectors * 4096;
+			sizeDelta += (int) (newLength - oldLength);
+			debugln("REGION COMPACT " + fileName + " " + oldLength + " -> " + newLength);
+			return oldLength - newLength;
+		}
+	}
+
+	/* removes the chunk at (x,z), freeing its sectors */
+	public void deleteChunk(int x, int z) throws IOException
+	{
+		if (outOfBounds(x, z))
+			return;
+		/* let queued writes land first, or one could bring the chunk back */
+		flush();
+		synchronized (this)
+		{
+			int offset = getOffset(x, z);
+			if (offset == 0)
+				return;
+			/* readers retry what they read meanwhile: the sectors may be reused
+			   as soon as they are freed */
+			layout++;
+			try
+			{
+				setOffset(x, z, 0);
+				stamp(x + z * 32, false);
+				/* stubs of chunks stored outside the region take one sector */
+				if ((offset & 0xFF) == 1 && isStub(x + z * 32, offset >> 8))
+					dropExternal(x, z);
+				stubs.clear(x + z * 32);
+				stubKnown.set(x + z * 32);
+				if (journal != null || deferHeader)
+					freeAfterCommit(offset >> 8, offset & 0xFF);
+				else
+				{
+					sectors.free(offset >> 8, offset & 0xFF);
+					/* a damaged table can have chunks sharing sectors; keep what the
+					   remaining chunks still use */
+					for (int other : offsets)
+					{
+						if (other != 0 && (other >> 8) < (offset >> 8) + (offset & 0xFF)
+							&& (other >> 8) + (other & 0xFF) > (offset >> 8))
+							sectors.mark(other >> 8, other & 0xFF);
+					}
+				}
+			}
+			finally
+			{
+				layout++;
+			}
+		}
+	}
+
+	/* write a chunk at (x,z) with length bytes of data to disk
+	   a chunk needing 256 sectors or more goes to its overflow file, with a
+	   stub in the region; throws IOException if that file cannot be written */
+	protected synchronized void write(int x, int z, int version, byte[] data, int length) throws IOException
+	{
+		boolean external = isExternal(length);
+		if (external)
+			writeExternal(x, z, version, data, length);
+		/* readers retry what they read meanwhile: sectors are overwritten in
+		   place or reused below */
+		layout++;
 		try
 		{
 			int offset = getOffset(x, z);
 			int sectorNumber = offset >> 8;
 			int sectorsAllocated = offset & 0xFF;
-			int sectorsNeeded = (length + CHUNK_HEADER_SIZE) / 4096 + 1;
-			if (sectorsNeeded >= 256) // maximum chunk size is 1MB
-				return;
-			if (sectorNumber != 0 && sectorsAllocated == sectorsNeeded)
+			int sectorsNeeded = external ? 1 : storedSize(length) / 4096 + 1;
+			/* stubs take one sector; look before the old sector is overwritten */
+			boolean wasStub = sectorsAllocated == 1 && isStub(x + z * 32, sectorNumber);
+			if (sectorNumber != 0 && sectorsAllocated == sectorsNeeded && journal == null)
 			{
 				/* we can simply overwrite the old sectors */
 				debug("SAVE", x, z, length, "rewrite");
-				write(sectorNumber, data, length);
+				write(sectorNumber, version, data, length);
 			}
 			else
 			{
 				/* we need to allocate new sectors */
-				/* mark the sectors previously used for this chunk as free */
-				for (int i = 0; i < sectorsAllocated; ++i)
-					sectorFree.set(sectorNumber + i, true);
-				/* scan for a free space large enough to store this chunk */
-				int runStart = sectorFree.indexOf(true);
-				int runLength = 0;
+				/* mark the sectors previously used for this chunk as free; when
+				   journaled or deferring the offset table, they have to survive
+				   until the table on disk points at the new ones */
+				if (sectorNumber != 0 && (journal != null || deferHeader))
+					freeAfterCommit(sectorNumber, sectorsAllocated);
+				else if (sectorNumber != 0)
+					sectors.free(sectorNumber, sectorsAllocated);
+				/* look for the smallest free space large enough to store this chunk */
+				int runStart = sectors.allocate(sectorsNeeded);
 				if (runStart != -1)
-				{
-					for (int i = runStart; i < sectorFree.size(); ++i)
-					{
-						if (runLength != 0)
-						{
-							if (sectorFree.get(i))
-								runLength++;
-							else
-								runLength = 0;
-						}
-						else if (sectorFree.get(i))
-						{
-							runStart = i;
-							runLength = 1;
-						}
-						if (runLength >= sectorsNeeded)
-							break;
-					}
-				}
-				if (runLength >= sectorsNeeded)
 				{
 					/* we found a free space large enough */
 					debug("SAVE", x, z, length, "reuse");
 					sectorNumber = runStart;
+					/* the data has to be there before the offset points at it */
+					write(sectorNumber, version, data, length);
 					setOffset(x, z, (sectorNumber << 8) | sectorsNeeded);
-					for (int i = 0; i < sectorsNeeded; ++i)
-						sectorFree.set(sectorNumber + i, false);
-					write(sectorNumber, data, length);
 				}
 				else
 				{
-					/* no free space large enough found -- we need to grow the file */
+					/* no free space large enough found -- we need to grow the file,
+					   starting with whatever free sectors are already at its end */
 					debug("SAVE", x, z, length, "grow");
-					file.seek(file.length());
-					sectorNumber = sectorFree.size();
-					for (int i = 0; i < sectorsNeeded; ++i)
-					{
-						file.write(emptySector);
-						sectorFree.add(false);
-					}
-					sizeDelta += 4096 * sectorsNeeded;
-					write(sectorNumber, data, length);
+					int trailing = sectors.trailingFree();
+					sectorNumber = sectors.size() - trailing;
+					growFile(sectorsNeeded - trailing);
+					sectors.mark(sectorNumber, sectorsNeeded);
+					write(sectorNumber, version, data, length);
 					setOffset(x, z, (sectorNumber << 8) | sectorsNeeded);
 				}
+				if (journal != null && (fsyncPolicy == FsyncPolicy.PER_CHUNK || pendingCommitCount >= MAX_PENDING_COMMITS))
+					commitJournal();
 			}
+			if (wasStub && !external)
+				dropExternal(x, z);
+			stubs.set(x + z * 32, external);
+			stubKnown.set(x + z * 32);
+			stamp(x + z * 32, true);
 		}
 		catch (IOException e)
 		{e.printStackTrace();}
+		finally
+		{
+			layout++;
+		}
 	}
 }
\ No newline at end of file
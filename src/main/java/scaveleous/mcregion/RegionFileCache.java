@@ -9,65 +9,109 @@ package scaveleous.mcregion;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.File;
-import java.io.IOException;
-import java.lang.ref.Reference;
-import java.lang.ref.SoftReference;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
+/* static access to the regions of any number of worlds, kept for
+   compatibility; each world directory gets its own RegionStorage, created
+   on first use, which does the actual work. Limits set here apply to each
+   world separately, existing and future. */
 public class RegionFileCache
 {
-	private static final Map<File, Reference<RegionFile>> cache = new HashMap<File, Reference<RegionFile>>();
+	public static final int DEFAULT_MAX_OPEN_REGIONS = RegionStorage.DEFAULT_MAX_OPEN_REGIONS;
+	private static final ConcurrentHashMap<File, RegionStorage> worlds = new ConcurrentHashMap<File, RegionStorage>();
+	private static volatile int maxOpenRegions = DEFAULT_MAX_OPEN_REGIONS;
+	private static volatile long chunkCacheSize = 0;
 
-	public static synchronized void clear()
+	/* the storage of a world directory, created on first use */
+	public static RegionStorage getStorage(File basePath)
 	{
-		for (Reference<RegionFile> ref : cache.values())
+		RegionStorage storage = worlds.get(basePath);
+		if (storage == null)
 		{
-			try
+			storage = worlds.computeIfAbsent(basePath, k ->
 			{
-				if (ref.get() != null)
-					ref.get().close();
-			}
-			catch (IOException e)
-			{
-				e.printStackTrace();
-			}
+				RegionStorage s = new RegionStorage(k);
+				s.setMaxOpenRegions(maxOpenRegions);
+				s.setChunkCacheSize(chunkCacheSize);
+				return s;
+			});
 		}
-		cache.clear();
+		return storage;
 	}
 
-	public static DataInputStream getChunkDataInputStream(File basePath, int x, int z)
+	/* closes every open region of every world, pinned or not */
+	public static void clear()
 	{
-		RegionFile r = getRegionFile(basePath, x, z);
-		return r.getChunkDataInputStream(x & 31, z & 31);
+		for (RegionStorage storage : worlds.values())
+			storage.clear();
 	}
 
-	public static DataOutputStream getChunkDataOutputStream(File basePath, int x, int z)
+	/* sets how many regions of each world may be open at once */
+	public static void setMaxOpenRegions(int regions)
 	{
-		RegionFile r = getRegionFile(basePath, x, z);
-		return r.getChunkDataOutputStream(x & 31, z & 31);
+		maxOpenRegions = Math.max(1, regions);
+		for (RegionStorage storage : worlds.values())
+			storage.setMaxOpenRegions(maxOpenRegions);
 	}
 
-	public static synchronized RegionFile getRegionFile(File basePath, int x, int z)
+	/* the number of open regions, over all worlds */
+	public static int getOpenRegions()
 	{
-		File regionDir = new File(basePath, "region");
-		File file = new File(regionDir, "r." + (x >> 5) + "." + (z >> 5) + ".data");
-		Reference<RegionFile> ref = cache.get(file);
-		if (ref != null && ref.get() != null)
-			return ref.get();
-		if (!regionDir.exists())
-			regionDir.mkdirs();
-		RegionFile reg = new RegionFile(file);
-		cache.put(file, new SoftReference<RegionFile>(reg));
-		return reg;
+		int open = 0;
+		for (RegionStorage storage : worlds.values())
+			open += storage.getOpenRegions();
+		return open;
 	}
 
-	public static int getSizeDelta(File basePath, int x, int z)
+	/* sets the chunk cache budget of each world (see
+	   RegionStorage.setChunkCacheSize) */
+	public static void setChunkCacheSize(long bytes)
+	{
+		chunkCacheSize = bytes;
+		for (RegionStorage storage : worlds.values())
+			storage.setChunkCacheSize(bytes);
+	}
+
+	public static long getChunkCacheHits()
+	{
+		long hits = 0;
+		for (RegionStorage storage : worlds.values())
+			hits += storage.getChunkCacheHits();
+		return hits;
+	}
+
+	public static long getChunkCacheMisses()
 	{
-		RegionFile r = getRegionFile(basePath, x, z);
-		return r.getSizeDelta();
+		long misses = 0;
+		for (RegionStorage storage : worlds.values())
+			misses += storage.getChunkCacheMisses();
+		return misses;
 	}
 
+	public static DataInputStream getChunkDataInputStream(File basePath, int x, int z)
+	{ return getStorage(basePath).getChunkDataInputStream(x, z); }
+
+	public static DataOutputStream getChunkDataOutputStream(File basePath, int x, int z)
+	{ return getStorage(basePath).getChunkDataOutputStream(x, z); }
+
+	public static DataOutputStream getChunkDataOutputStream(File basePath, int x, int z, ChunkCodec codec)
+	{ return getStorage(basePath).getChunkDataOutputStream(x, z, codec); }
+
+	/* see RegionStorage.getRegionFile */
+	public static RegionFile getRegionFile(File basePath, int x, int z)
+	{ return getStorage(basePath).getRegionFile(x, z); }
+
+	/* see RegionStorage.acquireRegionFile */
+	public static RegionFile acquireRegionFile(File basePath, int x, int z)
+	{ return getStorage(basePath).acquireRegionFile(x, z); }
+
+	/* unpins a region got from acquireRegionFile() */
+	public static void releaseRegionFile(File basePath, RegionFile region)
+	{ getStorage(basePath).releaseRegionFile(region); }
+
+	public static int getSizeDelta(File basePath, int x, int z)
+	{ return getStorage(basePath).getSizeDelta(x, z); }
+
 	private RegionFileCache()
 	{}
-}
\ No newline at end of file
+}
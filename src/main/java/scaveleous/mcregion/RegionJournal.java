@@ -0,0 +1,132 @@
+package scaveleous.mcregion;
+
+// A redo log for chunk offset table updates
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+/* the journal of a region file "r.x.z.data" is "r.x.z.data.journal"
+
+   it holds 12-byte records: a big-endian chunk slot (x + z * 32), the new
+   offset table entry for that slot, and a CRC32 of those 8 bytes. A record
+   is only appended once the chunk data it points to is written, and the
+   journal is emptied once the offset table itself is up to date, so after a
+   crash replaying every intact record brings the table to the last
+   committed state. A torn record at the end fails its CRC and is ignored,
+   along with anything after it. */
+class RegionJournal
+{
+	static final int RECORD_SIZE = 12;
+
+	private final File path;
+	private RandomAccessFile file;
+	private FileChannel channel;
+
+	RegionJournal(File regionPath)
+	{ path = journalFile(regionPath); }
+
+	static File journalFile(File regionPath)
+	{ return new File(regionPath.getPath() + ".journal"); }
+
+	/* reads the intact records of the journal next to a region file
+	   returns (slot, offset) pairs in the order they were written, or an empty
+	   array if there is no journal */
+	static int[] replay(File regionPath) throws IOException
+	{
+		File path = journalFile(regionPath);
+		if (!path.exists())
+			return new int[0];
+		try (RandomAccessFile in = new RandomAccessFile(path, "r"))
+		{
+			int nRecords = (int) (in.length() / RECORD_SIZE);
+			ByteBuffer buf = ByteBuffer.allocate(nRecords * RECORD_SIZE);
+			in.getChannel().read(buf, 0);
+			buf.flip();
+			int records[] = new int[nRecords * 2];
+			int n = 0;
+			CRC32 crc = new CRC32();
+			while (buf.remaining() >= RECORD_SIZE)
+			{
+				int slot = buf.getInt();
+				int offset = buf.getInt();
+				int check = buf.getInt();
+				if (check != checksum(crc, slot, offset) || slot < 0 || slot >= 1024)
+					break;
+				records[n++] = slot;
+				records[n++] = offset;
+			}
+			int ret[] = new int[n];
+			System.arraycopy(records, 0, ret, 0, n);
+			return ret;
+		}
+	}
+
+	/* appends count (slot, offset) pairs from records */
+	void append(int[] records, int count) throws IOException
+	{
+		open();
+		ByteBuffer buf = ByteBuffer.allocate(count * RECORD_SIZE);
+		CRC32 crc = new CRC32();
+		for (int i = 0; i < count; ++i)
+		{
+			int slot = records[i * 2];
+			int offset = records[i * 2 + 1];
+			buf.putInt(slot).putInt(offset).putInt(checksum(crc, slot, offset));
+		}
+		buf.flip();
+		long position = channel.size();
+		while (buf.hasRemaining())
+			position += channel.write(buf, position);
+	}
+
+	/* makes everything appended so far durable */
+	void force() throws IOException
+	{
+		if (channel != null)
+			channel.force(false);
+	}
+
+	/* forgets every record, once the offset table holds them */
+	void clear() throws IOException
+	{
+		if (channel != null)
+			channel.truncate(0);
+		else if (path.exists())
+			path.delete();
+	}
+
+	/* closes the journal, deleting it if it holds nothing */
+	void close() throws IOException
+	{
+		if (file == null)
+			return;
+		boolean empty = channel.size() == 0;
+		file.close();
+		file = null;
+		channel = null;
+		if (empty)
+			path.delete();
+	}
+
+	private void open() throws IOException
+	{
+		if (file == null)
+		{
+			file = new RandomAccessFile(path, "rw");
+			channel = file.getChannel();
+		}
+	}
+
+	private static int checksum(CRC32 crc, int slot, int offset)
+	{
+		crc.reset();
+		for (int shift = 24; shift >= 0; shift -= 8)
+			crc.update(slot >>> shift);
+		for (int shift = 24; shift >= 0; shift -= 8)
+			crc.update(offset >>> shift);
+		return (int) crc.getValue();
+	}
+}
@@ -0,0 +1,154 @@
+package scaveleous.mcregion;
+
+// Reads chunks ahead of the player in the background
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+/* warms the chunks around the ones being asked for, so that the first
+   frames in a new area do not wait on the disk
+
+   chunks are read on the storage's I/O threads at LOW priority, one task
+   per region, in sector order, into the chunk cache if the storage has one
+   and into the OS page cache otherwise. Regions that do not exist are never
+   created. At most maxInFlight region tasks run or wait at a time; further
+   requests are dropped rather than queued, since the player will have moved
+   on by the time they would run, and demand reads always go first. */
+public class RegionPrefetcher
+{
+	public static final int DEFAULT_MAX_IN_FLIGHT = 1;
+	private final RegionStorage storage;
+	private final Semaphore inFlight;
+	/* chunks queued or being read, by packed chunk coordinates */
+	private final Set<Long> queued = ConcurrentHashMap.newKeySet();
+	private final AtomicLong prefetched = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+
+	public RegionPrefetcher(RegionStorage storage)
+	{ this(storage, DEFAULT_MAX_IN_FLIGHT); }
+
+	public RegionPrefetcher(RegionStorage storage, int maxInFlight)
+	{
+		this.storage = storage;
+		inFlight = new Semaphore(Math.max(1, maxInFlight));
+	}
+
+	/* prefetches the ring of chunks at the given radius around (x,z), the
+	   ones a player standing there needs next; when (dx,dz) is not (0,0) only
+	   the part of the ring ahead of that direction of movement is read */
+	public void prefetchRing(int x, int z, int radius, int dx, int dz)
+	{
+		List<Long> chunks = new ArrayList<Long>();
+		for (int cz = z - radius; cz <= z + radius; ++cz)
+		{
+			for (int cx = x - radius; cx <= x + radius; ++cx)
+			{
+				if (Math.max(Math.abs(cx - x), Math.abs(cz - z)) != radius)
+					continue;
+				if ((dx != 0 || dz != 0) && (long) (cx - x) * dx + (long) (cz - z) * dz <= 0)
+					continue;
+				chunks.add(RegionTable.key(cx, cz));
+			}
+		}
+		prefetch(chunks);
+	}
+
+	/* prefetches the neighbours of chunks that were just requested, given as
+	   (x,z) pairs */
+	public void prefetchNeighbours(int[] requested)
+	{
+		Set<Long> wanted = new HashSet<Long>();
+		for (int i = 0; i + 1 < requested.length; i += 2)
+		{
+			for (int cz = requested[i + 1] - 1; cz <= requested[i + 1] + 1; ++cz)
+			{
+				for (int cx = requested[i] - 1; cx <= requested[i] + 1; ++cx)
+					wanted.add(RegionTable.key(cx, cz));
+			}
+		}
+		for (int i = 0; i + 1 < requested.length; i += 2)
+			wanted.remove(RegionTable.key(requested[i], requested[i + 1]));
+		prefetch(new ArrayList<Long>(wanted));
+	}
+
+	/* the number of chunks read ahead so far */
+	public long getPrefetched()
+	{ return prefetched.get(); }
+
+	/* the number of chunks not read ahead because too much was in flight */
+	public long getDropped()
+	{ return dropped.get(); }
+
+	/* groups chunks (packed coordinates) by region and queues one task per region */
+	private void prefetch(List<Long> chunks)
+	{
+		Map<Long, List<Long>> byRegion = new HashMap<Long, List<Long>>();
+		for (long chunk : chunks)
+		{
+			int x = (int) (chunk >> 32);
+			int z = (int) chunk;
+			byRegion.computeIfAbsent(RegionTable.key(x >> 5, z >> 5), k -> new ArrayList<Long>()).add(chunk);
+		}
+		for (List<Long> regionChunks : byRegion.values())
+		{
+			long first = regionChunks.get(0);
+			if (!storage.regionExists((int) (first >> 32), (int) first))
+				continue;
+			regionChunks.removeIf(chunk -> !queued.add(chunk));
+			if (regionChunks.isEmpty())
+				continue;
+			if (!inFlight.tryAcquire())
+			{
+				dropped.addAndGet(regionChunks.size());
+				queued.removeAll(regionChunks);
+				continue;
+			}
+			storage.submit(RegionStorage.Priority.LOW, () -> readRegion(regionChunks));
+		}
+	}
+
+	private void readRegion(List<Long> chunks)
+	{
+		try
+		{
+			long first = chunks.get(0);
+			RegionFile region = storage.acquireRegionFile((int) (first >> 32), (int) first);
+			try
+			{
+				/* chunks not stored yet sort first and are skipped */
+				chunks.sort(Comparator.comparingInt(chunk -> region.getSectorNumber(slot(chunk))));
+				for (long chunk : chunks)
+				{
+					if (region.getSectorNumber(slot(chunk)) == 0)
+						continue;
+					storage.prefetchChunk(region, (int) (chunk >> 32), (int) chunk);
+					prefetched.incrementAndGet();
+				}
+			}
+			finally
+			{
+				storage.releaseRegionFile(region);
+			}
+		}
+		catch (Exception e)
+		{
+			/* only a hint; the real read will report the problem */
+		}
+		finally
+		{
+			queued.removeAll(chunks);
+			inFlight.release();
+		}
+	}
+
+	/* the slot within its region of a chunk given as packed coordinates */
+	private static int slot(long chunk)
+	{ return ((int) (chunk >> 32) & 31) + ((int) chunk & 31) * 32; }
+}
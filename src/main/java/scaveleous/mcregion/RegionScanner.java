@@ -0,0 +1,211 @@
+package scaveleous.mcregion;
+
+// Checks every chunk of a world's region files for damage
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Pattern;
+
+/* validates regions in parallel, one region file per task
+
+   every stored chunk has its offset, length, version and checksum checked
+   (see RegionFile.unwrapChunk), is decoded in full, and must not share
+   sectors with another chunk. Regions are read through MappedRegionFile, so
+   scanning never changes them; only quarantining does, by copying each bad
+   chunk's sectors to region/quarantine and then dropping the chunk. */
+class RegionScanner
+{
+	static final Pattern regionFilePattern = Pattern.compile("r\\.(-?[0-9]+)\\.(-?[0-9]+)\\.data");
+
+	private static final class BadChunk
+	{
+		final int x, z, offset;
+		final String reason;
+
+		BadChunk(int x, int z, int offset, String reason)
+		{
+			this.x = x;
+			this.z = z;
+			this.offset = offset;
+			this.reason = reason;
+		}
+	}
+
+	private static final class Result
+	{
+		final File file;
+		int chunks = 0;
+		final List<BadChunk> bad = new ArrayList<BadChunk>();
+		String error = null;
+
+		Result(File file)
+		{ this.file = file; }
+	}
+
+	/* scans every region of a world with the given number of threads, printing
+	   each problem found and a summary to out
+	   returns the number of bad chunks */
+	static int scan(File worldDir, int threads, boolean quarantine, PrintStream out)
+	{
+		File regionDir = new File(worldDir, "region");
+		File files[] = regionDir.listFiles((dir, name) -> regionFilePattern.matcher(name).matches());
+		if (files == null)
+		{
+			out.println("error: region directory not found");
+			return 0;
+		}
+		long start = System.nanoTime();
+		ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, threads));
+		List<Future<Result>> results = new ArrayList<Future<Result>>();
+		for (final File file : files)
+			results.add(pool.submit(() -> scanRegion(file, quarantine)));
+		int chunks = 0, bad = 0, regions = 0;
+		try
+		{
+			for (Future<Result> future : results)
+			{
+				Result result = future.get();
+				regions++;
+				chunks += result.chunks;
+				bad += result.bad.size();
+				if (result.error != null)
+					out.println(result.file.getName() + ": " + result.error);
+				for (BadChunk chunk : result.bad)
+					out.println(result.file.getName() + "[" + chunk.x + "," + chunk.z + "]: " + chunk.reason +
+						(quarantine ? " (quarantined)" : ""));
+			}
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+		catch (ExecutionException e)
+		{
+			e.getCause().printStackTrace();
+		}
+		finally
+		{
+			pool.shutdownNow();
+		}
+		out.println("verified " + chunks + " chunks in " + regions + " regions in " +
+			(System.nanoTime() - start) / 1000000 + "ms: " + (bad == 0 ? "no problems found" : bad + " bad chunks"));
+		return bad;
+	}
+
+	private static Result scanRegion(File file, boolean quarantine)
+	{
+		Result result = new Result(file);
+		try (MappedRegionFile region = new MappedRegionFile(file))
+		{
+			BitSet usedSectors = new BitSet();
+			for (int z = 0; z < 32; ++z)
+			{
+				for (int x = 0; x < 32; ++x)
+				{
+					int offset = region.getOffset(x, z);
+					if (offset == 0)
+						continue;
+					result.chunks++;
+					int sectorNumber = offset >> 8;
+					int numSectors = offset & 0xFF;
+					if (usedSectors.get(sectorNumber, sectorNumber + numSectors).cardinality() > 0)
+					{
+						result.bad.add(new BadChunk(x, z, offset, "shares sectors with another chunk"));
+						continue;
+					}
+					usedSectors.set(sectorNumber, sectorNumber + numSectors);
+					String problem = checkChunk(region, x, z);
+					if (problem != null)
+						result.bad.add(new BadChunk(x, z, offset, problem));
+				}
+			}
+		}
+		catch (IOException e)
+		{
+			result.error = e.getMessage();
+			return result;
+		}
+		if (quarantine && !result.bad.isEmpty())
+		{
+			try
+			{
+				quarantine(file, result.bad);
+			}
+			catch (IOException e)
+			{
+				result.error = "quarantine failed: " + e.getMessage();
+			}
+		}
+		return result;
+	}
+
+	/* returns a description of what is wrong with the chunk, or null if it is fine */
+	private static String checkChunk(MappedRegionFile region, int x, int z)
+	{
+		try
+		{
+			int version = region.getChunkVersion(x, z);
+			ChunkCodec codec = ChunkCodec.forVersion(version);
+			if (codec == null)
+				return "unknown version " + version;
+			try (InputStream in = codec.decode(new ByteBufferInputStream(region.getChunkData(x, z))))
+			{
+				in.transferTo(OutputStream.nullOutputStream());
+			}
+			return null;
+		}
+		catch (IOException | RuntimeException e)
+		{
+			return e.getMessage() != null ? e.getMessage() : e.toString();
+		}
+	}
+
+	/* saves the raw sectors of each bad chunk next to the region, then removes
+	   the chunks from it */
+	private static void quarantine(File file, List<BadChunk> bad) throws IOException
+	{
+		File dir = new File(file.getParentFile(), "quarantine");
+		dir.mkdirs();
+		try (RandomAccessFile in = new RandomAccessFile(file, "r"))
+		{
+			for (BadChunk chunk : bad)
+			{
+				long start = (long) (chunk.offset >> 8) * 4096;
+				long length = Math.max(0, Math.min((chunk.offset & 0xFF) * 4096L, in.length() - start));
+				ByteBuffer sectors = ByteBuffer.allocate((int) length);
+				while (sectors.hasRemaining() && in.getChannel().read(sectors, start + sectors.position()) >= 0)
+					;
+				File saved = new File(dir, file.getName() + "." + chunk.x + "." + chunk.z + ".bad");
+				try (RandomAccessFile out = new RandomAccessFile(saved, "rw"))
+				{
+					out.setLength(0);
+					out.write(sectors.array(), 0, sectors.position());
+				}
+			}
+		}
+		RegionFile region = new RegionFile(file);
+		try
+		{
+			for (BadChunk chunk : bad)
+				region.deleteChunk(chunk.x, chunk.z);
+		}
+		finally
+		{
+			region.close();
+		}
+	}
+
+	private RegionScanner()
+	{}
+}
@@ -0,0 +1,772 @@
+package scaveleous.mcregion;
+
+// The open regions, I/O threads and statistics of one world directory
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/* the regions of one world (or dimension) directory, with their own limit
+   on open regions, chunk cache, I/O thread pool and flush schedule, so a
+   busy world never competes with a quiet one for any of them
+
+   open regions are kept up to a maximum; past that, the least recently used
+   regions that are not pinned are flushed and closed. A region is pinned
+   while acquireRegionFile() callers hold it and while a chunk output stream
+   on it is open, so it is never closed under someone.
+
+   looking up an open region takes no lock and allocates nothing: regions are
+   kept in a RegionTable keyed by packed region coordinates, and pinning is a
+   CAS on the region's pin count, which is set to -1 when the region is
+   closed. Opening and closing regions is serialized on the table, so a
+   region is never open twice.
+
+   loadChunkAsync() and saveChunkAsync() run on the world's I/O threads,
+   highest priority first and in submission order within a priority. A
+   save stays pending until it is in the region, and a load of a chunk with
+   a pending save returns the saved data, so a load always sees the saves
+   submitted before it. Saves of the same chunk are written in order, and a
+   save that was replaced by a later one before it ran is skipped. */
+public class RegionStorage implements Closeable
+{
+	public enum Priority
+	{
+		/* chunks the player needs now */
+		HIGH,
+		NORMAL,
+		/* speculative work, such as prefetching */
+		LOW
+	}
+
+	/* a unit of work for the I/O threads, ordered by priority, then by
+	   submission */
+	private static final class Task implements Runnable, Comparable<Task>
+	{
+		private static final AtomicLong submitted = new AtomicLong();
+		final Priority priority;
+		final long sequence = submitted.getAndIncrement();
+		final Runnable body;
+
+		Task(Priority priority, Runnable body)
+		{
+			this.priority = priority;
+			this.body = body;
+		}
+
+		@Override
+		public void run()
+		{ body.run(); }
+
+		@Override
+		public int compareTo(Task o)
+		{
+			if (priority != o.priority)
+				return priority.compareTo(o.priority);
+			return Long.compare(sequence, o.sequence);
+		}
+	}
+
+	/* a save that is not in the region yet */
+	private static final class PendingSave
+	{
+		final byte[] data;
+		final ChunkCodec codec;
+		final CompletableFuture<Void> future = new CompletableFuture<Void>();
+
+		PendingSave(byte[] data, ChunkCodec codec)
+		{
+			this.data = data;
+			this.codec = codec;
+		}
+	}
+
+	/* the I/O threads know which storage they work for */
+	private static final class IoThread extends Thread
+	{
+		final RegionStorage storage;
+
+		IoThread(RegionStorage storage, Runnable body, String name)
+		{
+			super(body, name);
+			this.storage = storage;
+			setDaemon(true);
+		}
+	}
+
+	private static final class Candidate
+	{
+		final long key;
+		final RegionFile region;
+		final long lastUsed;
+
+		Candidate(long key, RegionFile region)
+		{
+			this.key = key;
+			this.region = region;
+			this.lastUsed = region.lastUsed;
+		}
+	}
+
+	public static final int DEFAULT_MAX_OPEN_REGIONS = 256;
+	public static final int DEFAULT_IO_THREADS = 2;
+	/* saves of the same chunk hold one of these while they write */
+	private static final int SAVE_LOCKS = 64;
+	/* only schedules periodic flushes; they run on each world's own threads */
+	private static final ScheduledExecutorService flushTimer = Executors.newSingleThreadScheduledExecutor(r ->
+	{
+		Thread t = new Thread(r, "RegionStorage flush timer");
+		t.setDaemon(true);
+		return t;
+	});
+	private final File worldDir;
+	private final File regionDir;
+	private final RegionTable regions = new RegionTable();
+	private final AtomicInteger openRegions = new AtomicInteger();
+	private volatile int maxOpenRegions = DEFAULT_MAX_OPEN_REGIONS;
+	private final ReentrantLock evictLock = new ReentrantLock();
+	/* decompressed chunks, disabled until given a budget */
+	private final ChunkCache chunkCache = new ChunkCache(0);
+	/* created on first use; its queue only ever holds Tasks */
+	private ThreadPoolExecutor executor;
+	private int ioThreads = DEFAULT_IO_THREADS;
+	/* runs write-behind batches and the like on the I/O threads */
+	private final Executor backgroundExecutor = r -> submit(Priority.NORMAL, r);
+	/* async saves not yet written, by packed chunk coordinates */
+	private final ConcurrentHashMap<Long, PendingSave> pendingSaves = new ConcurrentHashMap<Long, PendingSave>();
+	private final Object saveLocks[] = new Object[SAVE_LOCKS];
+	/* 0 unless write-behind is enabled for the regions of this world */
+	private volatile int writeBehindCapacity = 0;
+	private ScheduledFuture<?> flushTask;
+	/* true from a periodic flush's submission until it is done */
+	private final AtomicBoolean periodicFlushPending = new AtomicBoolean();
+	private volatile boolean closed = false;
+	private final AtomicLong chunkReads = new AtomicLong();
+	private final AtomicLong chunkWrites = new AtomicLong();
+	private final AtomicLong regionOpens = new AtomicLong();
+	private final AtomicLong regionEvictions = new AtomicLong();
+
+	public RegionStorage(File worldDir)
+	{
+		this.worldDir = worldDir;
+		regionDir = new File(worldDir, "region");
+		for (int i = 0; i < SAVE_LOCKS; ++i)
+			saveLocks[i] = new Object();
+	}
+
+	public File getWorldDir()
+	{ return worldDir; }
+
+	/* finishes pending saves, flushes and closes every region and stops the
+	   I/O threads; the storage cannot be used afterwards */
+	@Override
+	public void close()
+	{
+		ThreadPoolExecutor pool;
+		synchronized (this)
+		{
+			if (closed)
+				return;
+			closed = true;
+			if (flushTask != null)
+				flushTask.cancel(false);
+			pool = executor;
+		}
+		awaitPendingSaves();
+		clear();
+		if (pool != null)
+			pool.shutdown();
+	}
+
+	/* closes every open region, pinned or not, and empties the chunk cache */
+	public void clear()
+	{
+		evictLock.lock();
+		try
+		{
+			regions.forEach((key, region) ->
+			{
+				region.pins.set(-1);
+				close(key, region);
+			});
+		}
+		finally
+		{
+			evictLock.unlock();
+		}
+		chunkCache.clear();
+	}
+
+	/* sets how many regions may be open at once; regions over the limit are
+	   closed as soon as they are no longer pinned */
+	public void setMaxOpenRegions(int regions)
+	{
+		maxOpenRegions = Math.max(1, regions);
+		evict();
+	}
+
+	public int getMaxOpenRegions()
+	{ return maxOpenRegions; }
+
+	public int getOpenRegions()
+	{ return openRegions.get(); }
+
+	/* keeps up to bytes of recently read chunks in memory, decompressed, so
+	   reading them again costs no disk access or inflating; 0 turns the
+	   cache off (the default) */
+	public void setChunkCacheSize(long bytes)
+	{ chunkCache.setBudget(bytes); }
+
+	/* sets the number of threads doing background I/O for this world */
+	public synchronized void setIoThreads(int threads)
+	{
+		ioThreads = Math.max(1, threads);
+		if (executor != null)
+		{
+			if (ioThreads > executor.getMaximumPoolSize())
+			{
+				executor.setMaximumPoolSize(ioThreads);
+				executor.setCorePoolSize(ioThreads);
+			}
+			else
+			{
+				executor.setCorePoolSize(ioThreads);
+				executor.setMaximumPoolSize(ioThreads);
+			}
+		}
+	}
+
+	/* makes every region of this world, open or opened later, queue up to
+	   capacity chunk writes and save them on this world's I/O threads (see
+	   RegionFile.enableWriteBehind) */
+	public void enableWriteBehind(int capacity)
+	{
+		writeBehindCapacity = Math.max(1, capacity);
+		regions.forEach((key, region) -> region.enableWriteBehind(writeBehindCapacity, backgroundExecutor));
+	}
+
+	/* flushes every open region of this world every millis milliseconds, on
+	   its I/O threads; 0 stops the periodic flushes
+	   a periodic flush does not wait for async saves, which may be queued on
+	   the same threads behind it; they are flushed by the next one. A tick is
+	   skipped while the previous flush has not finished. */
+	public synchronized void setFlushInterval(long millis)
+	{
+		if (flushTask != null)
+			flushTask.cancel(false);
+		flushTask = null;
+		if (millis > 0 && !closed)
+		{
+			flushTask = flushTimer.scheduleWithFixedDelay(() ->
+			{
+				if (!periodicFlushPending.compareAndSet(false, true))
+					return;
+				submit(Priority.NORMAL, () ->
+				{
+					try
+					{
+						flushRegions();
+					}
+					catch (IOException e)
+					{
+						e.printStackTrace();
+					}
+					finally
+					{
+						periodicFlushPending.set(false);
+					}
+				});
+			}, millis, millis, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/* blocks until every chunk written so far, including async saves, is in
+	   its region file
+	   on an I/O thread of this world, such as in a dependent action of a
+	   load or save, the pending saves are written on the calling thread,
+	   since they may be queued behind it */
+	public void flush() throws IOException
+	{
+		awaitPendingSaves();
+		flushRegions();
+	}
+
+	/* flushes every open region, leaving async saves that have not run yet
+	   where they are */
+	private void flushRegions() throws IOException
+	{
+		List<RegionFile> open = new ArrayList<RegionFile>();
+		regions.forEach((key, region) ->
+		{
+			if (pin(region))
+				open.add(region);
+		});
+		IOException error = null;
+		for (RegionFile region : open)
+		{
+			try
+			{
+				region.flush();
+			}
+			catch (IOException e)
+			{
+				error = e;
+			}
+			finally
+			{
+				releaseRegionFile(region);
+			}
+		}
+		if (error != null)
+			throw error;
+	}
+
+	public long getChunkReads()
+	{ return chunkReads.get(); }
+
+	public long getChunkWrites()
+	{ return chunkWrites.get(); }
+
+	public long getRegionOpens()
+	{ return regionOpens.get(); }
+
+	public long getRegionEvictions()
+	{ return regionEvictions.get(); }
+
+	public long getChunkCacheHits()
+	{ return chunkCache.getHits(); }
+
+	public long getChunkCacheMisses()
+	{ return chunkCache.getMisses(); }
+
+	/* loads the data of chunk (x,z) on the I/O threads
+	   the future completes with the uncompressed data, or null if the chunk
+	   is not stored or cannot be read. Cancelling it before it has run skips
+	   the read; dependent actions run on an I/O thread unless added with an
+	   async method. */
+	public CompletableFuture<byte[]> loadChunkAsync(int x, int z)
+	{ return loadChunkAsync(x, z, Priority.NORMAL); }
+
+	public CompletableFuture<byte[]> loadChunkAsync(int x, int z, Priority priority)
+	{
+		CompletableFuture<byte[]> future = new CompletableFuture<byte[]>();
+		PendingSave save = pendingSaves.get(RegionTable.key(x, z));
+		if (save != null)
+		{
+			future.complete(save.data);
+			return future;
+		}
+		submit(priority, () ->
+		{
+			if (future.isDone())
+				return;
+			try
+			{
+				future.complete(loadChunk(x, z));
+			}
+			catch (Throwable e)
+			{
+				future.completeExceptionally(e);
+			}
+		});
+		return future;
+	}
+
+	/* saves data as the new content of chunk (x,z) on the I/O threads
+	   data must not be changed afterwards. Until the future completes, loads
+	   of the chunk return data. Saves cannot be cancelled. */
+	public CompletableFuture<Void> saveChunkAsync(int x, int z, byte[] data)
+	{ return saveChunkAsync(x, z, data, ChunkCodec.DEFLATE, Priority.NORMAL); }
+
+	public CompletableFuture<Void> saveChunkAsync(int x, int z, byte[] data, ChunkCodec codec, Priority priority)
+	{
+		long key = RegionTable.key(x, z);
+		PendingSave save = new PendingSave(data, codec);
+		PendingSave replaced = pendingSaves.put(key, save);
+		submit(priority, () -> writePendingSave(x, z, key, save, replaced));
+		return save.future;
+	}
+
+	public DataInputStream getChunkDataInputStream(int x, int z)
+	{
+		chunkReads.incrementAndGet();
+		byte data[] = null;
+		if (chunkCache.isEnabled())
+			data = chunkCache.get(worldDir, x, z);
+		if (data == null)
+		{
+			long stamp = chunkCache.stamp();
+			RegionFile r = acquireRegionFile(x, z);
+			DataInputStream in;
+			try
+			{
+				/* the returned stream reads from memory, so the region can be
+				   released before it is used */
+				in = r.getChunkDataInputStream(x & 31, z & 31);
+				if (in == null || !chunkCache.isEnabled())
+					return in;
+			}
+			finally
+			{
+				releaseRegionFile(r);
+			}
+			try
+			{
+				data = in.readAllBytes();
+				in.close();
+			}
+			catch (IOException e)
+			{
+				return null;
+			}
+			chunkCache.put(worldDir, x, z, data, stamp);
+		}
+		return new DataInputStream(new ByteArrayInputStream(data));
+	}
+
+	public DataOutputStream getChunkDataOutputStream(int x, int z)
+	{ return getChunkDataOutputStream(x, z, ChunkCodec.DEFLATE); }
+
+	/* the region stays pinned until the returned stream is closed */
+	public DataOutputStream getChunkDataOutputStream(int x, int z, ChunkCodec codec)
+	{
+		RegionFile r = acquireRegionFile(x, z);
+		DataOutputStream out = r.getChunkDataOutputStream(x & 31, z & 31, codec);
+		if (out == null)
+		{
+			releaseRegionFile(r);
+			return null;
+		}
+		return new DataOutputStream(new FilterOutputStream(out)
+		{
+			private boolean closed = false;
+
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException
+			{ out.write(b, off, len); }
+
+			@Override
+			public void close() throws IOException
+			{
+				if (closed)
+					return;
+				closed = true;
+				try
+				{ super.close(); }
+				finally
+				{
+					/* the cached copy is stale once the new data is written, on close */
+					chunkCache.invalidate(worldDir, x, z);
+					chunkWrites.incrementAndGet();
+					releaseRegionFile(r);
+				}
+			}
+		});
+	}
+
+	/* gets the region holding chunk (x,z), opening it if needed
+	   the region is not pinned, so it may be closed by a later lookup once
+	   more than the maximum number of regions are open; callers that keep it
+	   should use acquireRegionFile() instead */
+	public RegionFile getRegionFile(int x, int z)
+	{
+		RegionFile r = acquireRegionFile(x, z);
+		releaseRegionFile(r);
+		return r;
+	}
+
+	/* gets the region holding chunk (x,z), opening it if needed, and pins it
+	   until it is handed back with releaseRegionFile() */
+	public RegionFile acquireRegionFile(int x, int z)
+	{
+		if (closed)
+			throw new IllegalStateException("region storage for " + worldDir + " is closed");
+		long key = RegionTable.key(x >> 5, z >> 5);
+		while (true)
+		{
+			RegionFile region = regions.get(key);
+			if (region == null)
+				region = open(key, x >> 5, z >> 5);
+			if (pin(region))
+			{
+				region.lastUsed = System.nanoTime();
+				if (openRegions.get() > maxOpenRegions)
+					evict();
+				return region;
+			}
+			/* closed since the lookup; it is already out of the table, or about
+			   to be */
+			Thread.onSpinWait();
+		}
+	}
+
+	/* unpins a region got from acquireRegionFile() */
+	public void releaseRegionFile(RegionFile region)
+	{
+		int pins;
+		do
+		{
+			pins = region.pins.get();
+			if (pins <= 0)
+				return;
+		}
+		while (!region.pins.compareAndSet(pins, pins - 1));
+		if (pins == 1 && openRegions.get() > maxOpenRegions)
+			evict();
+	}
+
+	public int getSizeDelta(int x, int z)
+	{
+		RegionFile r = acquireRegionFile(x, z);
+		try
+		{
+			return r.getSizeDelta();
+		}
+		finally
+		{
+			releaseRegionFile(r);
+		}
+	}
+
+	/* does the region file holding chunk (x,z) exist? */
+	boolean regionExists(int x, int z)
+	{
+		return regions.get(RegionTable.key(x >> 5, z >> 5)) != null ||
+			new File(regionDir, "r." + (x >> 5) + "." + (z >> 5) + ".data").exists();
+	}
+
+	/* gets chunk (x,z) of region ready to be read: decoded into the chunk
+	   cache if it is enabled, otherwise into the OS page cache */
+	void prefetchChunk(RegionFile region, int x, int z) throws IOException
+	{
+		if (!chunkCache.isEnabled())
+		{
+			region.prefetchChunk(x & 31, z & 31);
+			return;
+		}
+		if (chunkCache.contains(worldDir, x, z) || pendingSaves.containsKey(RegionTable.key(x, z)))
+			return;
+		long stamp = chunkCache.stamp();
+		DataInputStream in = region.getChunkDataInputStream(x & 31, z & 31);
+		if (in == null)
+			return;
+		try
+		{
+			chunkCache.put(worldDir, x, z, in.readAllBytes(), stamp);
+		}
+		finally
+		{
+			in.close();
+		}
+	}
+
+	/* runs body on the I/O threads of this world, which are started on first use */
+	void submit(Priority priority, Runnable body)
+	{
+		ThreadPoolExecutor pool;
+		synchronized (this)
+		{
+			if (executor == null)
+			{
+				String name = "RegionStorage I/O (" + worldDir.getName() + ")";
+				executor = new ThreadPoolExecutor(ioThreads, ioThreads, 30, TimeUnit.SECONDS,
+					new PriorityBlockingQueue<Runnable>(), r -> new IoThread(this, r, name));
+				executor.allowCoreThreadTimeOut(true);
+			}
+			pool = executor;
+		}
+		try
+		{
+			pool.execute(new Task(priority, body));
+		}
+		catch (RejectedExecutionException e)
+		{
+			/* shut down: finish on the caller's thread rather than drop the work */
+			body.run();
+		}
+	}
+
+	private byte[] loadChunk(int x, int z) throws IOException
+	{
+		/* a save may have been submitted since the load was */
+		PendingSave save = pendingSaves.get(RegionTable.key(x, z));
+		if (save != null)
+			return save.data;
+		DataInputStream in = getChunkDataInputStream(x, z);
+		if (in == null)
+			return null;
+		try
+		{
+			return in.readAllBytes();
+		}
+		finally
+		{
+			in.close();
+		}
+	}
+
+	/* writes save unless a later save of the same chunk was written first
+	   saves of the same chunk are serialized, so the last one submitted is
+	   always the last one written */
+	private void writePendingSave(int x, int z, long key, PendingSave save, PendingSave replaced)
+	{
+		synchronized (saveLocks[(int) (key ^ key >>> 32) & (SAVE_LOCKS - 1)])
+		{
+			try
+			{
+				if (pendingSaves.get(key) == save)
+				{
+					DataOutputStream out = getChunkDataOutputStream(x, z, save.codec);
+					if (out == null)
+						throw new IOException("cannot write chunk " + x + "," + z);
+					out.write(save.data);
+					out.close();
+					pendingSaves.remove(key, save);
+				}
+				save.future.complete(null);
+			}
+			catch (Throwable e)
+			{
+				pendingSaves.remove(key, save);
+				save.future.completeExceptionally(e);
+			}
+		}
+		/* a replaced save is superseded by this one */
+		if (replaced != null)
+			replaced.future.complete(null);
+	}
+
+	private void awaitPendingSaves()
+	{
+		Thread current = Thread.currentThread();
+		boolean inline = current instanceof IoThread && ((IoThread) current).storage == this;
+		for (Map.Entry<Long, PendingSave> entry : pendingSaves.entrySet())
+		{
+			PendingSave save = entry.getValue();
+			if (inline)
+			{
+				/* the task queued for it finds it written and skips it */
+				long key = entry.getKey();
+				writePendingSave((int) (key >> 32), (int) key, key, save, null);
+				continue;
+			}
+			try
+			{
+				save.future.join();
+			}
+			catch (CompletionException e)
+			{
+				/* reported through the save's own future */
+			}
+		}
+	}
+
+	private static boolean pin(RegionFile region)
+	{
+		int pins;
+		do
+		{
+			pins = region.pins.get();
+			if (pins < 0)
+				return false;
+		}
+		while (!region.pins.compareAndSet(pins, pins + 1));
+		return true;
+	}
+
+	private RegionFile open(long key, int regionX, int regionZ)
+	{
+		synchronized (regions)
+		{
+			RegionFile region = regions.get(key);
+			if (region == null)
+			{
+				if (!regionDir.exists())
+					regionDir.mkdirs();
+				region = new RegionFile(new File(regionDir, "r." + regionX + "." + regionZ + ".data"));
+				if (writeBehindCapacity > 0)
+					region.enableWriteBehind(writeBehindCapacity, backgroundExecutor);
+				regions.put(key, region);
+				openRegions.incrementAndGet();
+				regionOpens.incrementAndGet();
+			}
+			return region;
+		}
+	}
+
+	/* takes a region whose pin count is already -1 out of the table and
+	   closes it, holding the table's lock so the region cannot be reopened
+	   until it is fully written out */
+	private void close(long key, RegionFile region)
+	{
+		synchronized (regions)
+		{
+			if (!regions.remove(key, region))
+				return;
+			openRegions.decrementAndGet();
+			try
+			{
+				region.close();
+			}
+			catch (IOException e)
+			{
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/* closes least recently used, unpinned regions until no more than the
+	   maximum are open
+	   only one thread evicts at a time; others find the lock taken and leave
+	   the work to it */
+	private void evict()
+	{
+		if (openRegions.get() <= maxOpenRegions || !evictLock.tryLock())
+			return;
+		try
+		{
+			List<Candidate> candidates = new ArrayList<Candidate>();
+			regions.forEach((key, region) ->
+			{
+				if (region.pins.get() == 0)
+					candidates.add(new Candidate(key, region));
+			});
+			candidates.sort(Comparator.comparingLong(c -> c.lastUsed));
+			for (Candidate candidate : candidates)
+			{
+				if (openRegions.get() <= maxOpenRegions)
+					break;
+				if (candidate.region.pins.compareAndSet(0, -1))
+				{
+					close(candidate.key, candidate.region);
+					regionEvictions.incrementAndGet();
+				}
+			}
+		}
+		finally
+		{
+			evictLock.unlock();
+		}
+	}
+}
@@ -0,0 +1,112 @@
+package scaveleous.mcregion;
+
+// A map from packed region coordinates to open regions, read without locking
+
+/* an open-addressing hash table of long keys, replaced wholesale on every
+   change
+
+   lookups read the current table through one volatile field and never lock
+   or allocate. Changes are synchronized and copy the table; they only happen
+   when a region is opened or closed, which costs far more than the copy. */
+class RegionTable
+{
+	interface Visitor
+	{
+		void visit(long key, RegionFile region);
+	}
+
+	private static final class Table
+	{
+		final long keys[];
+		final RegionFile values[];
+		final int size;
+
+		Table(int capacity, int size)
+		{
+			keys = new long[capacity];
+			values = new RegionFile[capacity];
+			this.size = size;
+		}
+	}
+
+	private volatile Table table = new Table(16, 0);
+
+	/* packs region coordinates into a key */
+	static long key(int regionX, int regionZ)
+	{ return (long) regionX << 32 | (regionZ & 0xFFFFFFFFL); }
+
+	RegionFile get(long key)
+	{
+		Table t = table;
+		int mask = t.keys.length - 1;
+		for (int i = hash(key) & mask; ; i = (i + 1) & mask)
+		{
+			RegionFile value = t.values[i];
+			if (value == null || t.keys[i] == key)
+				return value;
+		}
+	}
+
+	synchronized void put(long key, RegionFile value)
+	{
+		Table t = table;
+		Table copy = new Table(capacityFor(t.size + 1), t.size + (get(key) == null ? 1 : 0));
+		for (int i = 0; i < t.keys.length; ++i)
+		{
+			if (t.values[i] != null && t.keys[i] != key)
+				insert(copy, t.keys[i], t.values[i]);
+		}
+		insert(copy, key, value);
+		table = copy;
+	}
+
+	/* removes key if it still maps to value */
+	synchronized boolean remove(long key, RegionFile value)
+	{
+		Table t = table;
+		if (get(key) != value)
+			return false;
+		Table copy = new Table(capacityFor(t.size - 1), t.size - 1);
+		for (int i = 0; i < t.keys.length; ++i)
+		{
+			if (t.values[i] != null && t.keys[i] != key)
+				insert(copy, t.keys[i], t.values[i]);
+		}
+		table = copy;
+		return true;
+	}
+
+	int size()
+	{ return table.size; }
+
+	/* visits the regions in the table at the time of the call */
+	void forEach(Visitor visitor)
+	{
+		Table t = table;
+		for (int i = 0; i < t.keys.length; ++i)
+		{
+			if (t.values[i] != null)
+				visitor.visit(t.keys[i], t.values[i]);
+		}
+	}
+
+	private static void insert(Table t, long key, RegionFile value)
+	{
+		int mask = t.keys.length - 1;
+		int i = hash(key) & mask;
+		while (t.values[i] != null)
+			i = (i + 1) & mask;
+		t.keys[i] = key;
+		t.values[i] = value;
+	}
+
+	/* keeps the table at most half full */
+	private static int capacityFor(int size)
+	{ return Math.max(16, Integer.highestOneBit(Math.max(1, size) * 2) << 1); }
+
+	private static int hash(long key)
+	{
+		long h = key * 0x9E3779B97F4A7C15L;
+		return (int) (h ^ h >>> 32);
+	}
+}
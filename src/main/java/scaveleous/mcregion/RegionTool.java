@@ -5,14 +5,41 @@ package scaveleous.mcregion;
 ** (Public domain)
 **/
 // A tool to convert to and from chunk/region files
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.zip.GZIPInputStream;
@@ -21,42 +48,116 @@ import java.util.zip.GZIPOutputStream;
 class RegionTool
 {
 	static private boolean isConsole = false;
+	/* what packChunk did with a chunk file */
+	private static final int PACKED = 0;
+	private static final int SKIPPED_OLDER = 1;
+	private static final int UNCHANGED = 2;
+	/* chunks that may wait in a region's write-behind queue while recompressing */
+	private static final int WRITE_BEHIND_CAPACITY = 256;
+
+	/* counts the bytes written through it */
+	private static class CountingOutputStream extends FilterOutputStream
+	{
+		long count = 0;
+
+		CountingOutputStream(OutputStream out)
+		{ super(out); }
+
+		@Override
+		public void write(int b) throws IOException
+		{
+			out.write(b);
+			count++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException
+		{
+			out.write(b, off, len);
+			count += len;
+		}
+	}
 
 	/* copies all files from one directory to another, except for files in the skip set
-	   does not copy empty directories */
-	private static void copyDir(File srcDir, File dstDir, Set<File> skip)
+	   does not copy empty directories. Files are copied with FileChannel.transferTo,
+	   which lets the OS move the data without it passing through the heap, or
+	   hard linked if link is set and the target is on the same file system;
+	   the copies themselves run on the given number of threads */
+	private static void copyDir(File srcDir, File dstDir, Set<File> skip, boolean link, int threads)
 	{
-		byte buf[] = new byte[4096];
-		for (File child : srcDir.listFiles())
+		Path src = srcDir.toPath();
+		Path dst = dstDir.toPath();
+		List<Runnable> tasks = new ArrayList<Runnable>();
+		try
 		{
-			if (child.isDirectory())
-				copyDir(child, new File(dstDir, child.getName()), skip);
-			else
+			Files.walkFileTree(src, new SimpleFileVisitor<Path>()
 			{
-				if (!skip.contains(child))
+				@Override
+				public FileVisitResult visitFile(Path file, BasicFileAttributes attrs)
 				{
-					try
+					if (attrs.isRegularFile() && !skip.contains(file.toFile()))
 					{
-						File dstfile = new File(dstDir, child.getName());
-						dstDir.mkdirs();
-						FileOutputStream out = new FileOutputStream(dstfile);
-						FileInputStream in = new FileInputStream(child);
-						int len = 0;
-						while (len != -1)
-						{
-							out.write(buf, 0, len);
-							len = in.read(buf);
-						}
-						out.close();
-						in.close();
-					}
-					catch (IOException e)
-					{
-						e.printStackTrace();
+						Path target = dst.resolve(src.relativize(file));
+						tasks.add(() -> copyFile(file, target, link));
 					}
+					return FileVisitResult.CONTINUE;
+				}
+
+				@Override
+				public FileVisitResult visitFileFailed(Path file, IOException e)
+				{
+					System.err.println(file + ": " + e.getMessage());
+					return FileVisitResult.CONTINUE;
+				}
+			});
+		}
+		catch (IOException e)
+		{
+			e.printStackTrace();
+		}
+		runAll(tasks, threads);
+	}
+
+	private static void copyFile(Path src, Path dst, boolean link)
+	{
+		try
+		{
+			/* a target overlapping the source world already has the file; replacing
+			   it would delete or truncate the source */
+			if (Files.exists(dst) && Files.isSameFile(src, dst))
+				return;
+			Files.createDirectories(dst.getParent());
+			if (link)
+			{
+				try
+				{
+					Files.deleteIfExists(dst);
+					Files.createLink(dst, src);
+					return;
+				}
+				catch (IOException | UnsupportedOperationException e)
+				{
+					/* another file system, or no hard links there: copy instead */
+				}
+			}
+			try (FileChannel in = FileChannel.open(src, StandardOpenOption.READ);
+				FileChannel out = FileChannel.open(dst, StandardOpenOption.WRITE,
+					StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING))
+			{
+				long size = in.size();
+				for (long position = 0; position < size; )
+				{
+					long n = in.transferTo(position, size - position, out);
+					if (n <= 0)
+						break;
+					position += n;
 				}
 			}
 		}
+		catch (IOException e)
+		{
+			System.err.println(src + ": " + e.getMessage());
+		}
 	}
 
 	private static void exit(String message)
@@ -67,10 +168,44 @@ class RegionTool
 
 	private static void exitUsage()
 	{ exit("regionTool: converts between chunks and regions\n" +
-		"usage: java -jar RegionTool.jar [un]pack <world directory> [target directory]"); }
+		"usage: java -jar RegionTool.jar [-j threads] [-l] [un]pack <world directory> [target directory]\n" +
+		"       java -jar RegionTool.jar [-j threads] verify <world directory> [quarantine]\n" +
+		"       java -jar RegionTool.jar [-j threads] compact <world directory>\n" +
+		"       java -jar RegionTool.jar [-j threads] analyze <world directory> [json]\n" +
+		"       java -jar RegionTool.jar [-j threads] recompress <world directory> <gzip|deflate[:level]|none|lz4>\n" +
+		"  -j  convert, copy, verify, analyze, compact and recompress with this many threads\n" +
+		"      (default 1, 0 for one per processor)\n" +
+		"  -l  hard link the other files of the world into the target instead of copying them,\n" +
+		"      where the file system allows it"); }
 
 	public static void main(String[] args)
 	{
+		int threads = 1;
+		boolean link = false;
+		while (args.length > 0 && args[0].startsWith("-"))
+		{
+			if (args[0].equals("-l"))
+			{
+				link = true;
+				args = Arrays.copyOfRange(args, 1, args.length);
+			}
+			else if (args[0].equals("-j") && args.length >= 2)
+			{
+				try
+				{
+					threads = Integer.parseInt(args[1]);
+				}
+				catch (NumberFormatException e)
+				{
+					exitUsage();
+				}
+				if (threads <= 0)
+					threads = Runtime.getRuntime().availableProcessors();
+				args = Arrays.copyOfRange(args, 2, args.length);
+			}
+			else
+				exitUsage();
+		}
 		if (args.length != 2 && args.length != 3)
 			exitUsage();
 		if (System.console() != null)
@@ -80,11 +215,53 @@ class RegionTool
 			mode = 1;
 		else if (args[0].equalsIgnoreCase("pack"))
 			mode = 2;
+		else if (args[0].equalsIgnoreCase("verify"))
+			mode = 3;
+		else if (args[0].equalsIgnoreCase("compact"))
+			mode = 4;
+		else if (args[0].equalsIgnoreCase("analyze"))
+			mode = 5;
+		else if (args[0].equalsIgnoreCase("recompress"))
+			mode = 6;
 		if (mode == 0)
 			exitUsage();
 		File worldDir = new File(args[1]);
 		if (!worldDir.exists() || !worldDir.isDirectory())
 			exit("error: " + worldDir.getPath() + " is not a directory");
+		if (mode == 3)
+		{
+			if (args.length == 3 && !args[2].equalsIgnoreCase("quarantine"))
+				exitUsage();
+			int bad = RegionScanner.scan(worldDir, threads,
+				args.length == 3, System.out);
+			if (bad > 0)
+				System.exit(1);
+			return;
+		}
+		if (mode == 4)
+		{
+			if (args.length != 2)
+				exitUsage();
+			compact(worldDir, threads);
+			return;
+		}
+		if (mode == 5)
+		{
+			if (args.length == 3 && !args[2].equalsIgnoreCase("json"))
+				exitUsage();
+			if (!RegionAnalyzer.analyze(worldDir, threads,
+				args.length == 3, System.out))
+				exit("error: region directory not found");
+			return;
+		}
+		if (mode == 6)
+		{
+			ChunkCodec codec = args.length == 3 ? parseCodec(args[2]) : null;
+			if (codec == null)
+				exitUsage();
+			recompress(worldDir, codec, threads);
+			return;
+		}
 		File targetDir = worldDir;
 		if (args.length == 3)
 		{
@@ -93,20 +270,59 @@ class RegionTool
 			{ targetDir.mkdirs(); }
 		}
 		if (mode == 1)
-			unpack(worldDir, targetDir);
+			unpack(worldDir, targetDir, threads, link);
 		else if (mode == 2)
-			pack(worldDir, targetDir);
+			pack(worldDir, targetDir, threads, link);
 	}
 
-	private static void pack(File worldDir, File targetDir)
+	/* runs the tasks on a pool of the given number of threads and waits for
+	   all of them; a task that fails is reported without stopping the others,
+	   which may be in the middle of writing a region */
+	private static void runAll(List<Runnable> tasks, int threads)
+	{
+		ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, threads));
+		try
+		{
+			List<Future<?>> results = new ArrayList<Future<?>>();
+			for (Runnable task : tasks)
+				results.add(pool.submit(task));
+			for (Future<?> result : results)
+			{
+				try
+				{
+					result.get();
+				}
+				catch (ExecutionException e)
+				{
+					e.getCause().printStackTrace();
+				}
+			}
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+		finally
+		{
+			pool.shutdown();
+		}
+	}
+
+	/* packs chunk files into regions; chunks are grouped by the region they go
+	   to and each region is filled by a single task, so no two threads ever
+	   write the same region */
+	private static void pack(File worldDir, File targetDir, int threads, boolean link)
 	{
 		Set<File> processedFiles = null;
 		if (worldDir != targetDir)
+		{
 			processedFiles = new HashSet<File>();
+			/* it describes the regions of the source world, not the target */
+			processedFiles.add(PackManifest.manifestFile(worldDir));
+		}
 		Pattern chunkFilePattern = Pattern.compile("c\\.(-?[0-9a-z]+)\\.(-?[0-9a-z]+).dat");
 		Pattern chunkFolderPattern = Pattern.compile("[0-9a-z]|1[0-9a-r]");
-		int chunksPacked = 0;
-		int chunksSkipped = 0;
+		Map<Long, List<File>> chunksByRegion = new LinkedHashMap<Long, List<File>>();
 		for (File dir1 : worldDir.listFiles())
 		{
 			if (!dir1.isDirectory())
@@ -124,100 +340,479 @@ class RegionTool
 							Matcher m = chunkFilePattern.matcher(chunkFile.getName());
 							if (m.matches())
 							{
-								if (packChunk(targetDir, chunkFile, m))
-									chunksPacked++;
-								else
-									chunksSkipped++;
+								int x = Integer.parseInt(m.group(1), 36);
+								int z = Integer.parseInt(m.group(2), 36);
+								chunksByRegion.computeIfAbsent(RegionTable.key(x >> 5, z >> 5),
+									k -> new ArrayList<File>()).add(chunkFile);
 								if (processedFiles != null)
 									processedFiles.add(chunkFile);
 							}
-							if (isConsole)
-								System.out.print("\rpacked " + chunksPacked + " chunks" +
-									(chunksSkipped > 0 ? ", skipped " + chunksSkipped + " older ones" : ""));
 						}
 					}
 				}
 			}
 		}
-		if (isConsole)
-			System.out.print("\r");
-		System.out.println("packed " + chunksPacked + " chunks" +
-			(chunksSkipped > 0 ? ", skipped " + chunksSkipped + " older ones" : ""));
+		int chunkCount = 0;
+		for (List<File> chunkFiles : chunksByRegion.values())
+			chunkCount += chunkFiles.size();
+		RegionStorage storage = new RegionStorage(targetDir);
+		storage.setMaxOpenRegions(Math.max(storage.getMaxOpenRegions(), threads));
+		PackManifest manifest;
+		try
+		{
+			manifest = PackManifest.load(targetDir);
+		}
+		catch (IOException e)
+		{
+			exit("error: cannot read " + PackManifest.manifestFile(targetDir) + ": " + e.getMessage());
+			return;
+		}
+		AtomicInteger chunksPacked = new AtomicInteger();
+		AtomicInteger chunksSkipped = new AtomicInteger();
+		AtomicInteger chunksUnchanged = new AtomicInteger();
+		ProgressReporter progress = new ProgressReporter("pack", chunkCount, false, System.out, isConsole);
+		progress.start();
+		List<Runnable> tasks = new ArrayList<Runnable>();
+		for (List<File> chunkFiles : chunksByRegion.values())
+		{
+			tasks.add(() ->
+			{
+				for (File chunkFile : chunkFiles)
+				{
+					Matcher m = chunkFilePattern.matcher(chunkFile.getName());
+					m.matches();
+					int result = packChunk(storage, manifest, chunkFile, m, progress);
+					if (result == PACKED)
+						chunksPacked.incrementAndGet();
+					else if (result == UNCHANGED)
+						chunksUnchanged.incrementAndGet();
+					else
+						chunksSkipped.incrementAndGet();
+				}
+			});
+		}
+		runAll(tasks, threads);
+		/* closing trims the space preallocated at the end of each region */
+		storage.close();
+		try
+		{
+			manifest.save();
+		}
+		catch (IOException e)
+		{
+			System.err.println("error: cannot write " + PackManifest.manifestFile(targetDir) + ": " + e.getMessage());
+		}
+		progress.finish("packed " + chunksPacked + " chunks" +
+			(chunksSkipped.get() > 0 ? ", skipped " + chunksSkipped + " older ones" : "") +
+			(chunksUnchanged.get() > 0 ? ", " + chunksUnchanged + " unchanged" : ""));
 		if (processedFiles != null)
-			copyDir(worldDir, targetDir, processedFiles);
+			copyDir(worldDir, targetDir, processedFiles, link, threads);
 	}
 
-	private static boolean packChunk(File worldDir, File chunkFile, Matcher m)
+	/* packs a chunk file into its region, unless the region holds a newer
+	   version of the chunk or the manifest shows the file is unchanged since
+	   it was last packed; files whose size and modification time match the
+	   manifest are not even opened
+	   returns PACKED, SKIPPED_OLDER or UNCHANGED */
+	private static int packChunk(RegionStorage storage, PackManifest manifest, File chunkFile, Matcher m,
+		ProgressReporter progress)
 	{
 		int x = Integer.parseInt(m.group(1), 36);
 		int z = Integer.parseInt(m.group(2), 36);
-		RegionFile region = RegionFileCache.getRegionFile(worldDir, x, z);
-		if (region.lastModified() > chunkFile.lastModified())
-			return false;
-		byte buf[] = new byte[4096];
-		int len = 0;
+		long size = chunkFile.length();
+		long modified = chunkFile.lastModified();
+		PackManifest.Entry last = manifest.get(x, z);
+		if (last != null && last.size == size && last.modified == modified && storage.regionExists(x, z))
+		{
+			progress.addSkipped(0);
+			return UNCHANGED;
+		}
+		RegionFile region = storage.acquireRegionFile(x, z);
 		try
 		{
-			DataInputStream istream = new DataInputStream(
-				new GZIPInputStream(new FileInputStream(chunkFile)));
+			region.setTimestamps(true);
+			long stored = chunkTimestamp(region, x & 31, z & 31);
+			if ((last == null || stored != last.regionTimestamp) && stored > modified)
+			{
+				/* changed in the region since it was packed, and newer than the file */
+				progress.addSkipped(0);
+				return SKIPPED_OLDER;
+			}
+			byte data[] = Files.readAllBytes(chunkFile.toPath());
+			String hash = sha256(data);
+			if (last != null && stored == last.regionTimestamp && hash.equals(last.hash))
+			{
+				/* touched, but the same as what the region holds */
+				manifest.put(x, z, new PackManifest.Entry(size, modified, hash, stored));
+				progress.addSkipped(data.length);
+				return UNCHANGED;
+			}
+			byte buf[] = new byte[4096];
+			int len = 0;
+			DataInputStream istream = new DataInputStream(new GZIPInputStream(new ByteArrayInputStream(data)));
+			long written = region.getBytesWritten();
+			long uncompressed = 0;
 			DataOutputStream out = region.getChunkDataOutputStream(x & 31, z & 31);
 			while (len != -1)
 			{
 				out.write(buf, 0, len);
+				uncompressed += len;
 				len = istream.read(buf);
 			}
 			out.close();
 			istream.close();
-			return true;
+			written = region.getBytesWritten() - written;
+			progress.addChunk(data.length, written, uncompressed, written);
+			manifest.put(x, z, new PackManifest.Entry(size, modified, hash, chunkTimestamp(region, x & 31, z & 31)));
+			return PACKED;
 		}
 		catch (IOException e)
 		{
 			e.printStackTrace();
 		}
-		return false;
+		finally
+		{
+			storage.releaseRegionFile(region);
+		}
+		return SKIPPED_OLDER;
+	}
+
+	/* when the chunk at (x,z) of region was written: its own timestamp if it
+	   has one, else the time the region was last modified; 0 if it is not
+	   stored or cannot be read */
+	private static long chunkTimestamp(RegionFile region, int x, int z)
+	{
+		if (region.getSectorNumber(x + z * 32) == 0)
+			return 0;
+		try
+		{
+			long timestamp = region.getChunkTimestamp(x, z);
+			return timestamp != 0 ? timestamp : region.lastModified();
+		}
+		catch (IOException e)
+		{
+			return 0;
+		}
+	}
+
+	private static String sha256(byte[] data)
+	{
+		try
+		{
+			byte digest[] = MessageDigest.getInstance("SHA-256").digest(data);
+			StringBuilder hex = new StringBuilder(digest.length * 2);
+			for (byte b : digest)
+				hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+			return hex.toString();
+		}
+		catch (NoSuchAlgorithmException e)
+		{
+			/* every Java platform has SHA-256 */
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/* compacts each region file of a world in a task of its own */
+	private static void compact(File worldDir, int threads)
+	{
+		File regionDir = new File(worldDir, "region");
+		File regionFiles[] = regionDir.listFiles((dir, name) -> RegionScanner.regionFilePattern.matcher(name).matches());
+		if (regionFiles == null)
+			exit("error: region directory not found");
+		long start = System.nanoTime();
+		AtomicLong before = new AtomicLong();
+		AtomicLong saved = new AtomicLong();
+		List<Runnable> tasks = new ArrayList<Runnable>();
+		for (File file : regionFiles)
+		{
+			tasks.add(() ->
+			{
+				long length = file.length();
+				RegionFile region = new RegionFile(file);
+				try
+				{
+					long shrunk = region.compact();
+					before.addAndGet(length);
+					saved.addAndGet(shrunk);
+					System.out.println(file.getName() + ": " + length / 1024 + "KB -> " + (length - shrunk) / 1024 + "KB");
+				}
+				catch (IOException e)
+				{
+					System.err.println(file.getName() + ": " + e.getMessage());
+				}
+				finally
+				{
+					try
+					{
+						region.close();
+					}
+					catch (IOException e)
+					{
+						e.printStackTrace();
+					}
+				}
+			});
+		}
+		runAll(tasks, threads);
+		long total = before.get();
+		System.out.println("compacted " + regionFiles.length + " regions in " + (System.nanoTime() - start) / 1000000 +
+			"ms: " + total / 1024 + "KB -> " + (total - saved.get()) / 1024 + "KB" +
+			(total > 0 ? String.format(Locale.ROOT, " (%.1f%% smaller)", saved.get() * 100.0 / total) : ""));
 	}
 
-	private static void unpack(File worldDir, File targetDir)
+	/* the codec named on the command line: gzip, deflate, deflate:<level>, none or lz4
+	   returns null if there is no such codec */
+	private static ChunkCodec parseCodec(String name)
+	{
+		name = name.toLowerCase(Locale.ROOT);
+		if (name.equals("gzip"))
+			return ChunkCodec.GZIP;
+		if (name.equals("deflate"))
+			return ChunkCodec.DEFLATE;
+		if (name.equals("none"))
+			return ChunkCodec.NONE;
+		if (name.equals("lz4"))
+			return ChunkCodec.LZ4;
+		if (name.startsWith("deflate:"))
+		{
+			try
+			{
+				return ChunkCodec.deflate(Integer.parseInt(name.substring(8)));
+			}
+			catch (IllegalArgumentException e)
+			{
+				return null;
+			}
+		}
+		return null;
+	}
+
+	/* rewrites every chunk of a world with the given codec, one region at a
+	   time: chunks are decoded and encoded again on a pool of threads, and
+	   written through the region's write-behind queue, so a single thread
+	   writes each region. Writes are journaled, so an interrupted region
+	   keeps every chunk in one version or the other, and the region is
+	   compacted once it is done. Finished regions are listed in
+	   region/recompress.progress; a run with the same codec skips them, and
+	   the list is deleted when the whole world is done. Chunks that already
+	   use the codec (at its default level) are left alone. */
+	private static void recompress(File worldDir, ChunkCodec codec, int threads)
+	{
+		File regionDir = new File(worldDir, "region");
+		File regionFiles[] = regionDir.listFiles((dir, name) -> RegionScanner.regionFilePattern.matcher(name).matches());
+		if (regionFiles == null)
+			exit("error: region directory not found");
+		Arrays.sort(regionFiles);
+		File progressFile = new File(regionDir, "recompress.progress");
+		Set<String> done = readRecompressProgress(progressFile, codec);
+		long regionBytes = 0;
+		for (File file : regionFiles)
+		{
+			if (!done.contains(file.getName()))
+				regionBytes += Math.max(0, file.length() - 4096);
+		}
+		if (!done.isEmpty())
+			System.out.println("resuming: " + done.size() + " regions already recompressed to " + codec);
+		ProgressReporter progress = new ProgressReporter("recompress", regionBytes, true, System.out, isConsole);
+		progress.start();
+		ExecutorService workers = Executors.newFixedThreadPool(Math.max(1, threads));
+		int regions = 0;
+		long saved = 0;
+		try (BufferedWriter log = Files.newBufferedWriter(progressFile.toPath(), StandardCharsets.UTF_8,
+			StandardOpenOption.CREATE, done.isEmpty() ? StandardOpenOption.TRUNCATE_EXISTING : StandardOpenOption.APPEND))
+		{
+			if (done.isEmpty())
+			{
+				log.write(codec.toString());
+				log.newLine();
+			}
+			for (File file : regionFiles)
+			{
+				if (done.contains(file.getName()))
+					continue;
+				long length = file.length();
+				saved += length - recompressRegion(file, codec, workers, progress);
+				regions++;
+				/* not forced to disk: losing the line only means doing the region again */
+				log.write(file.getName());
+				log.newLine();
+				log.flush();
+			}
+		}
+		catch (IOException e)
+		{
+			progress.finish("recompressed " + regions + " regions before failing: " + e.getMessage());
+			System.exit(1);
+		}
+		finally
+		{
+			workers.shutdown();
+		}
+		progressFile.delete();
+		progress.finish("recompressed " + regions + " regions to " + codec + ", " +
+			(saved >= 0 ? saved / 1024 + "KB smaller" : -saved / 1024 + "KB larger"));
+	}
+
+	/* the regions an earlier run with the same codec finished, or none if
+	   there was no such run */
+	private static Set<String> readRecompressProgress(File progressFile, ChunkCodec codec)
+	{
+		Set<String> done = new HashSet<String>();
+		if (!progressFile.exists())
+			return done;
+		try
+		{
+			List<String> lines = Files.readAllLines(progressFile.toPath(), StandardCharsets.UTF_8);
+			if (!lines.isEmpty() && lines.get(0).equals(codec.toString()))
+				done.addAll(lines.subList(1, lines.size()));
+		}
+		catch (IOException e)
+		{
+			System.err.println(progressFile + ": " + e.getMessage());
+		}
+		return done;
+	}
+
+	/* rewrites the chunks of one region with codec
+	   returns the length of the region file afterwards */
+	private static long recompressRegion(File file, ChunkCodec codec, ExecutorService workers,
+		ProgressReporter progress) throws IOException
+	{
+		/* what each chunk takes up now, and whether it already uses the codec */
+		int stored[] = new int[1024];
+		boolean current[] = new boolean[1024];
+		try (MappedRegionFile mapped = new MappedRegionFile(file))
+		{
+			for (int slot = 0; slot < 1024; ++slot)
+			{
+				try
+				{
+					stored[slot] = mapped.getStoredSize(slot & 31, slot >> 5);
+					current[slot] = ChunkCodec.forVersion(mapped.getChunkVersion(slot & 31, slot >> 5)) == codec;
+				}
+				catch (IOException e)
+				{
+					/* damaged; forEachChunk skips it too */
+				}
+			}
+		}
+		AtomicInteger chunks = new AtomicInteger();
+		RegionFile region = new RegionFile(file);
+		try
+		{
+			region.enableJournal(RegionFile.FsyncPolicy.PER_BATCH);
+			region.enableWriteBehind(WRITE_BEHIND_CAPACITY, null);
+			long written = region.getBytesWritten();
+			region.forEachChunk((x, z, in) ->
+			{
+				int slot = x + z * 32;
+				if (current[slot])
+				{
+					in.close();
+					progress.addSkipped(stored[slot]);
+					return;
+				}
+				byte data[] = in.readAllBytes();
+				region.writeChunk(x, z, ByteBuffer.wrap(data), codec);
+				chunks.incrementAndGet();
+				progress.addChunk(stored[slot], 0, data.length, 0);
+			}, workers);
+			region.flush();
+			written = region.getBytesWritten() - written;
+			progress.addWritten(written, written);
+			region.compact();
+		}
+		finally
+		{
+			region.close();
+		}
+		progress.println(file.getName() + ": recompressed " + chunks + " chunks");
+		return file.length();
+	}
+
+	/* unpacks each region file in a task of its own */
+	private static void unpack(File worldDir, File targetDir, int threads, boolean link)
 	{
 		File regionDir = new File(worldDir, "region");
 		if (!regionDir.exists())
 			exit("error: region directory not found");
 		Set<File> processedFiles = null;
 		if (worldDir != targetDir)
+		{
 			processedFiles = new HashSet<File>();
+			/* it describes the regions of the source world, not the target */
+			processedFiles.add(PackManifest.manifestFile(worldDir));
+		}
 		Pattern regionFilePattern = Pattern.compile("r\\.(-?[0-9]+)\\.(-?[0-9]+).data");
-		Matcher match;
+		List<File> regionFiles = new ArrayList<File>();
+		List<Matcher> matches = new ArrayList<Matcher>();
+		long regionBytes = 0;
 		for (File file : regionDir.listFiles())
 		{
 			if (!file.isFile())
 				continue;
-			match = regionFilePattern.matcher(file.getName());
+			Matcher match = regionFilePattern.matcher(file.getName());
+			/* the data of chunks too large for their region ends up in the chunk
+			   files, and region timestamp files describe the regions */
+			if (processedFiles != null && (file.getName().endsWith(".mcc") || file.getName().endsWith(".data.ts")))
+				processedFiles.add(file);
 			if (match.matches())
 			{
-				unpackRegionFile(targetDir, file, match);
+				regionFiles.add(file);
+				matches.add(match);
+				/* less the offset table, which is not counted as read */
+				regionBytes += Math.max(0, file.length() - 4096);
 				if (processedFiles != null)
 					processedFiles.add(file);
 			}
 		}
+		ProgressReporter progress = new ProgressReporter("unpack", regionBytes, true, System.out, isConsole);
+		progress.start();
+		AtomicInteger chunksUnpacked = new AtomicInteger();
+		AtomicInteger chunksSkipped = new AtomicInteger();
+		List<Runnable> tasks = new ArrayList<Runnable>();
+		for (int i = 0; i < regionFiles.size(); ++i)
+		{
+			File file = regionFiles.get(i);
+			Matcher match = matches.get(i);
+			tasks.add(() ->
+			{
+				int counts[] = unpackRegionFile(targetDir, file, match, progress);
+				chunksUnpacked.addAndGet(counts[0]);
+				chunksSkipped.addAndGet(counts[1]);
+			});
+		}
+		runAll(tasks, threads);
+		progress.finish("unpacked " + chunksUnpacked + " chunks from " + regionFiles.size() + " regions" +
+			(chunksSkipped.get() > 0 ? ", skipped " + chunksSkipped + " newer ones" : ""));
 		if (processedFiles != null)
-			copyDir(worldDir, targetDir, processedFiles);
+			copyDir(worldDir, targetDir, processedFiles, link, threads);
 	}
 
-	private static void unpackRegionFile(File worldDir, File file, Matcher match)
+	/* returns the number of chunks written and skipped */
+	private static int[] unpackRegionFile(File worldDir, File file, Matcher match, ProgressReporter progress)
 	{
 		long regionModified = file.lastModified();
-		RegionFile region = new RegionFile(file);
+		/* chunks written and skipped */
+		int counts[] = new int[2];
+		MappedRegionFile region;
+		try
+		{
+			region = new MappedRegionFile(file);
+		}
+		catch (IOException e)
+		{
+			System.err.println(file.getName() + ": " + e.getMessage());
+			return counts;
+		}
 		String name = file.getName();
 		int regionX = Integer.parseInt(match.group(1));
 		int regionZ = Integer.parseInt(match.group(2));
-		int nWritten = 0, nSkipped = 0;
-		for (int x = 0; x < 32; ++x)
+		try
 		{
-			for (int z = 0; z < 32; ++z)
+			region.forEachChunk((x, z, istream) ->
 			{
-				DataInputStream istream = region.getChunkDataInputStream(x, z);
-				if (istream == null)
-					continue;
+				int stored = region.getStoredSize(x, z);
 				int chunkX = x + (regionX << 5);
 				int chunkZ = z + (regionZ << 5);
 				String chunkName = "c." + Integer.toString(chunkX, 36) + "." + Integer.toString(chunkZ, 36) + ".dat";
@@ -230,35 +825,47 @@ class RegionTool
 				int len = 0;
 				if (chunkFile.lastModified() > regionModified)
 				{
-					nSkipped++;
+					counts[1]++;
+					progress.addSkipped(stored);
 				}
 				else
 				{
 					try
 					{
-						DataOutputStream out = new DataOutputStream(
-							new GZIPOutputStream(new FileOutputStream(chunkFile)));
+						CountingOutputStream fileOut = new CountingOutputStream(new FileOutputStream(chunkFile));
+						DataOutputStream out = new DataOutputStream(new GZIPOutputStream(fileOut));
+						long uncompressed = 0;
 						while (len != -1)
 						{
 							out.write(buf, 0, len);
+							uncompressed += len;
 							len = istream.read(buf);
 						}
 						out.close();
-						nWritten++;
+						counts[0]++;
+						progress.addChunk(stored, fileOut.count, uncompressed, stored);
 					}
 					catch (IOException e)
 					{
 						e.printStackTrace();
 					}
 				}
-				if (isConsole)
-					System.out.print("\r" + name + ": unpacked " + nWritten + " chunks" +
-						(nSkipped > 0 ? ", skipped " + nSkipped + " newer ones" : ""));
-			}
+			});
+		}
+		catch (IOException e)
+		{
+			e.printStackTrace();
+		}
+		try
+		{
+			region.close();
+		}
+		catch (IOException e)
+		{
+			e.printStackTrace();
 		}
-		if (isConsole)
-			System.out.print("\r");
-		System.out.println(name + ": unpacked " + nWritten + " chunks" +
-			(nSkipped > 0 ? ", skipped " + nSkipped + " newer ones" : ""));
+		progress.println(name + ": unpacked " + counts[0] + " chunks" +
+			(counts[1] > 0 ? ", skipped " + counts[1] + " newer ones" : ""));
+		return counts;
 	}
 }
\ No newline at end of file
@@ -0,0 +1,44 @@
+package scaveleous.mcregion;
+
+// A growable byte buffer that is kept and reused instead of reallocated
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+
+/* a ByteArrayOutputStream whose backing array can be written to directly
+
+   used as per-thread scratch space on the chunk hot path: reset() keeps the
+   array, so once it has grown to the largest chunk seen no more allocation
+   happens. */
+class ReusableBuffer extends ByteArrayOutputStream
+{
+	ReusableBuffer(int size)
+	{ super(size); }
+
+	/* the backing array; valid up to size() */
+	byte[] array()
+	{ return buf; }
+
+	/* makes room for at least n more bytes after size() */
+	void ensureFree(int n)
+	{
+		if (buf.length - count < n)
+		{
+			byte grown[] = new byte[Math.max(buf.length * 2, count + n)];
+			System.arraycopy(buf, 0, grown, 0, count);
+			buf = grown;
+		}
+	}
+
+	/* records that n bytes were written directly into array() after size() */
+	void advance(int n)
+	{ count += n; }
+
+	/* writes the remaining bytes of src */
+	void write(ByteBuffer src)
+	{
+		int n = src.remaining();
+		ensureFree(n);
+		src.get(buf, count, n);
+		count += n;
+	}
+}
@@ -0,0 +1,154 @@
+package scaveleous.mcregion;
+
+// Keeps track of which 4KB sectors of a region file are in use
+import java.util.BitSet;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/* a bitset of used sectors, plus an index of the free runs between them
+
+   free runs are kept twice: by start sector, so neighbouring runs can be
+   merged when sectors are freed, and by (length, start), so the smallest run
+   that fits a chunk can be found in O(log n). Not thread safe; RegionFile
+   only touches it while holding its own lock. */
+class SectorAllocator
+{
+	private final BitSet used;
+	private int size;
+	/* start sector -> run length */
+	private final TreeMap<Integer, Integer> runsByStart = new TreeMap<Integer, Integer>();
+	/* (length << 32) | start, so ceiling() gives the best fit */
+	private final TreeSet<Long> runsByLength = new TreeSet<Long>();
+
+	/* creates a map of size sectors, all of them free */
+	SectorAllocator(int size)
+	{
+		used = new BitSet(size);
+		this.size = size;
+		if (size > 0)
+			addRun(0, size);
+	}
+
+	/* the number of sectors covered by the map */
+	int size()
+	{ return size; }
+
+	boolean isFree(int sector)
+	{ return sector < size && !used.get(sector); }
+
+	/* the number of free sectors at the very end of the map */
+	int trailingFree()
+	{
+		Map.Entry<Integer, Integer> last = runsByStart.lastEntry();
+		if (last == null || last.getKey() + last.getValue() != size)
+			return 0;
+		return last.getValue();
+	}
+
+	/* finds the smallest free run of at least count sectors and marks the
+	   first count sectors of it as used
+	   returns the first sector of the allocation, or -1 if nothing fits */
+	int allocate(int count)
+	{
+		Long fit = runsByLength.ceiling((long) count << 32);
+		if (fit == null)
+			return -1;
+		int start = (int) (long) fit;
+		mark(start, count);
+		return start;
+	}
+
+	/* adds count free sectors to the end of the map */
+	void grow(int count)
+	{
+		if (count <= 0)
+			return;
+		int start = size;
+		size += count;
+		Map.Entry<Integer, Integer> last = runsByStart.lastEntry();
+		if (last != null && last.getKey() + last.getValue() == start)
+		{
+			removeRun(last.getKey(), last.getValue());
+			addRun(last.getKey(), last.getValue() + count);
+		}
+		else
+			addRun(start, count);
+	}
+
+	/* drops the free sectors at the end of the map, down to at least
+	   newSize sectors
+	   returns the new size */
+	int truncate(int newSize)
+	{
+		int trailing = trailingFree();
+		newSize = Math.max(newSize, size - trailing);
+		if (newSize >= size)
+			return size;
+		int runStart = size - trailing;
+		removeRun(runStart, trailing);
+		if (newSize > runStart)
+			addRun(runStart, newSize - runStart);
+		size = newSize;
+		return size;
+	}
+
+	/* marks count sectors starting at start as used
+	   sectors past the end of the map are ignored */
+	void mark(int start, int count)
+	{
+		int end = Math.min(start + count, size);
+		if (start >= end)
+			return;
+		used.set(start, end);
+		Map.Entry<Integer, Integer> run = runsByStart.floorEntry(start);
+		if (run == null || run.getKey() + run.getValue() <= start)
+			run = runsByStart.higherEntry(start);
+		while (run != null && run.getKey() < end)
+		{
+			int runStart = run.getKey();
+			int runEnd = runStart + run.getValue();
+			removeRun(runStart, run.getValue());
+			if (runStart < start)
+				addRun(runStart, start - runStart);
+			if (runEnd > end)
+				addRun(end, runEnd - end);
+			run = runsByStart.higherEntry(runStart);
+		}
+	}
+
+	/* marks count sectors starting at start as free, merging them with any
+	   neighbouring free runs */
+	void free(int start, int count)
+	{
+		int end = Math.min(start + count, size);
+		if (start >= end)
+			return;
+		used.clear(start, end);
+		int mergedStart = start;
+		int mergedEnd = end;
+		Map.Entry<Integer, Integer> run = runsByStart.floorEntry(start);
+		if (run == null || run.getKey() + run.getValue() < start)
+			run = runsByStart.higherEntry(start);
+		while (run != null && run.getKey() <= end)
+		{
+			mergedStart = Math.min(mergedStart, run.getKey());
+			mergedEnd = Math.max(mergedEnd, run.getKey() + run.getValue());
+			removeRun(run.getKey(), run.getValue());
+			run = runsByStart.higherEntry(run.getKey());
+		}
+		addRun(mergedStart, mergedEnd - mergedStart);
+	}
+
+	private void addRun(int start, int length)
+	{
+		runsByStart.put(start, length);
+		runsByLength.add(((long) length << 32) | start);
+	}
+
+	private void removeRun(int start, int length)
+	{
+		runsByStart.remove(start);
+		runsByLength.remove(((long) length << 32) | start);
+	}
+}
@@ -0,0 +1,248 @@
+package scaveleous.mcregion;
+
+// Queues chunk writes for a region so they can be saved in the background
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/* a bounded set of pending chunk writes for one region, keyed by chunk slot
+
+   a later write to a slot replaces the pending one, so only the latest
+   version of a chunk ever reaches the disk. Writes stay pending (and readable
+   through get()) until they are on disk. A single drain task at a time
+   takes a snapshot of the pending writes and saves them in sector order.
+   A write that fails is dropped, and the first such failure is thrown by
+   the next flush() or close(). */
+class WriteBehindQueue
+{
+	static final class PendingWrite
+	{
+		final int slot;
+		final int version;
+		final byte[] data;
+		final int length;
+
+		PendingWrite(int slot, int version, byte[] data, int length)
+		{
+			this.slot = slot;
+			this.version = version;
+			this.data = data;
+			this.length = length;
+		}
+	}
+
+	/* shared by every region that does not bring its own executor */
+	static final ExecutorService defaultExecutor = Executors.newCachedThreadPool(r -> {
+		Thread t = new Thread(r, "RegionFile writer");
+		t.setDaemon(true);
+		return t;
+	});
+
+	private final RegionFile region;
+	private final int capacity;
+	private final Executor executor;
+	private final Map<Integer, PendingWrite> pending = new HashMap<Integer, PendingWrite>();
+	/* true while a drain task is scheduled or running */
+	private boolean draining = false;
+	/* true while some thread is actually draining */
+	private boolean running = false;
+	private boolean closed = false;
+	/* the first write that failed since the last flush */
+	private IOException error = null;
+
+	WriteBehindQueue(RegionFile region, int capacity, Executor executor)
+	{
+		this.region = region;
+		this.capacity = Math.max(1, capacity);
+		this.executor = executor;
+	}
+
+	/* queues a write of length bytes of data to slot, blocking while the queue
+	   is full unless it replaces a write that is already pending
+	   if the queue is full and no thread is draining it, the caller drains
+	   instead of waiting, like flush(), since the drain task may be queued on
+	   the executor behind the very thread that is calling */
+	void enqueue(int slot, int version, byte[] data, int length) throws IOException
+	{
+		try
+		{
+			while (true)
+			{
+				synchronized (this)
+				{
+					if (closed)
+						throw new IOException("write-behind queue is closed");
+					if (pending.size() < capacity || pending.containsKey(slot))
+					{
+						pending.put(slot, new PendingWrite(slot, version, data, length));
+						if (!draining)
+						{
+							draining = true;
+							executor.execute(this::drainTask);
+						}
+						return;
+					}
+					if (running)
+					{
+						wait();
+						continue;
+					}
+					draining = true;
+					running = true;
+				}
+				drain();
+			}
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("interrupted while queueing a chunk write");
+		}
+	}
+
+	/* the pending write for a slot, or null if its data is already on disk */
+	synchronized PendingWrite get(int slot)
+	{ return pending.get(slot); }
+
+	/* waits until every write queued so far is on disk, then throws the
+	   first write that failed, if any
+	   if the drain task has not started yet, the caller drains instead of
+	   waiting for it, so flushing from a thread of the executor cannot wait
+	   on a task queued behind itself. Writes left pending by a drain that
+	   failed are drained again, so they are never dropped without a word. */
+	void flush() throws IOException
+	{
+		try
+		{
+			while (true)
+			{
+				synchronized (this)
+				{
+					while (running)
+						wait();
+					if (pending.isEmpty())
+						break;
+					draining = true;
+					running = true;
+				}
+				drain();
+			}
+			rethrow();
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("interrupted while flushing chunk writes");
+		}
+	}
+
+	/* flushes, then refuses any further writes */
+	void close() throws IOException
+	{
+		synchronized (this)
+		{
+			closed = true;
+			notifyAll();
+		}
+		flush();
+	}
+
+	/* throws the first failed write since the last call, if any */
+	private synchronized void rethrow() throws IOException
+	{
+		IOException e = error;
+		error = null;
+		if (e != null)
+			throw e;
+	}
+
+	private void drainTask()
+	{
+		synchronized (this)
+		{
+			/* already drained, or being drained, by a caller */
+			if (!draining || running)
+				return;
+			running = true;
+		}
+		drain();
+	}
+
+	/* saves batches until nothing is pending; the caller has set running */
+	private void drain()
+	{
+		try
+		{
+			while (true)
+			{
+				List<PendingWrite> batch;
+				synchronized (this)
+				{
+					if (pending.isEmpty())
+					{
+						draining = false;
+						running = false;
+						notifyAll();
+						return;
+					}
+					batch = new ArrayList<PendingWrite>(pending.values());
+				}
+				synchronized (region)
+				{
+					/* chunks that already have sectors go first, in file order, then
+					   new chunks, which will be appended; the sectors are looked up
+					   once, under the region lock, so they cannot move mid-sort */
+					long order[] = new long[batch.size()];
+					for (int i = 0; i < order.length; ++i)
+					{
+						int sector = region.getSectorNumber(batch.get(i).slot);
+						order[i] = (long) (sector == 0 ? Integer.MAX_VALUE : sector) << 32 | i;
+					}
+					Arrays.sort(order);
+					for (long entry : order)
+					{
+						PendingWrite w = batch.get((int) entry);
+						try
+						{
+							region.write(w.slot & 31, w.slot >> 5, w.version, w.data, w.length);
+						}
+						catch (IOException e)
+						{
+							synchronized (this)
+							{
+								if (error == null)
+									error = e;
+							}
+						}
+					}
+					region.endBatch();
+				}
+				synchronized (this)
+				{
+					for (PendingWrite w : batch)
+						pending.remove(w.slot, w);
+					notifyAll();
+				}
+			}
+		}
+		catch (RuntimeException | Error e)
+		{
+			/* leave the queue usable; whatever is still pending goes out with
+			   the next drain, at the latest with the next flush() */
+			synchronized (this)
+			{
+				draining = false;
+				running = false;
+				notifyAll();
+			}
+			throw e;
+		}
+	}
+}
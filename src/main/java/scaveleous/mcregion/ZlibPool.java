@@ -0,0 +1,51 @@
+package scaveleous.mcregion;
+
+// Keeps native zlib state around between chunks
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/* a bounded pool of Inflaters and Deflaters
+
+   each one holds native zlib memory that is only given back by end(), so
+   rather than creating one per chunk they are reset and reused. Anything
+   released while the pool is full is ended right away. */
+final class ZlibPool
+{
+	private static final int MAX_POOLED = Math.max(4, Runtime.getRuntime().availableProcessors() * 2);
+	private static final ArrayBlockingQueue<Inflater> inflaters = new ArrayBlockingQueue<Inflater>(MAX_POOLED);
+	private static final ArrayBlockingQueue<Deflater> deflaters = new ArrayBlockingQueue<Deflater>(MAX_POOLED);
+
+	static Inflater acquireInflater()
+	{
+		Inflater inflater = inflaters.poll();
+		return inflater != null ? inflater : new Inflater();
+	}
+
+	static void release(Inflater inflater)
+	{
+		inflater.reset();
+		if (!inflaters.offer(inflater))
+			inflater.end();
+	}
+
+	/* a zlib deflater at the given compression level */
+	static Deflater acquireDeflater(int level)
+	{
+		Deflater deflater = deflaters.poll();
+		if (deflater == null)
+			return new Deflater(level);
+		deflater.setLevel(level);
+		return deflater;
+	}
+
+	static void release(Deflater deflater)
+	{
+		deflater.reset();
+		if (!deflaters.offer(deflater))
+			deflater.end();
+	}
+
+	private ZlibPool()
+	{}
+}